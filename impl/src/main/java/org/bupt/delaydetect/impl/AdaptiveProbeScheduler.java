@@ -0,0 +1,283 @@
+/*
+ * Copyright © 2017 bupt.dtj and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.bupt.delaydetect.impl;
+
+import org.opendaylight.yang.gen.v1.urn.opendaylight.packet.delaydetect.config.rev181107.DelaydetectConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * AdaptiveProbeScheduler re-probes links with targeted probes at a per-link
+ * interval. The interval shrinks with the variance of the link's delay and
+ * drops to the minimum when the delay changes, and it backs off towards the
+ * maximum while the link stays flat. Every tick sends at most a fixed share
+ * of the adaptive probe budget.
+ *
+ * <p>A link is keyed by the node connector the probe arrives at, but has to
+ * be probed out of the peer port on the source switch. Peer ports are
+ * learned from targeted probes, which carry their egress port; a link whose
+ * peer port is unknown triggers a port-by-port discovery of its source switch.
+ */
+public class AdaptiveProbeScheduler implements Runnable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AdaptiveProbeScheduler.class);
+    private static final double EWMA_WEIGHT = 0.125;
+    private static final double VOLATILITY_GAIN = 50.0;
+    private static final double CHANGE_SIGMAS = 3.0;
+    private static final double CHANGE_FRACTION = 0.05;
+    private static final int MIN_SAMPLES = 8;
+    private static final int EXPIRY_INTERVALS = 10;
+
+    private final LinkProber linkProber;
+    private final long minIntervalNanos;
+    private final long maxIntervalNanos;
+    private final int probesPerTick;
+
+    // Key: NodeConnectorId the probe arrives at, Value: the state of this link
+    private final Map<String, LinkState> links = new ConcurrentHashMap<>();
+    // Key: SwitchId, Value: time of the last port-by-port discovery
+    private final Map<String, Long> discoveryTimes = new ConcurrentHashMap<>();
+    private final PriorityQueue<DueLink> dueLinks = new PriorityQueue<>();
+
+    public AdaptiveProbeScheduler(DelaydetectConfig delaydetectConfig, LinkProber linkProber) {
+        this.linkProber = linkProber;
+        this.minIntervalNanos = TimeUnit.MILLISECONDS.toNanos(delaydetectConfig.getAdaptiveMinInterval());
+        this.maxIntervalNanos = Math.max(minIntervalNanos,
+                TimeUnit.MILLISECONDS.toNanos(delaydetectConfig.getAdaptiveMaxInterval()));
+        this.probesPerTick = (int) Math.max(1L,
+                delaydetectConfig.getAdaptiveProbeBudget() * delaydetectConfig.getAdaptiveMinInterval() / 1000L);
+    }
+
+    /**
+     * @return milliseconds between two ticks
+     */
+    public long getTickInterval() {
+        return Math.max(1L, TimeUnit.NANOSECONDS.toMillis(minIntervalNanos));
+    }
+
+    /**
+     * Records a published delay of a link and adapts its probe interval.
+     *
+     * @param ncId
+     *            The node connector the probe arrived at.
+     * @param srcNodeId
+     *            The switch the probe was sent from.
+     * @param delay
+     *            The link delay in nanoseconds.
+     */
+    public void record(String ncId, String srcNodeId, long delay) {
+        long now = System.nanoTime();
+        LinkState state = getLinkState(ncId, srcNodeId, now);
+        if (state.update(delay, now, minIntervalNanos, maxIntervalNanos)) {
+            schedule(state, now + minIntervalNanos);
+        }
+    }
+
+    /**
+     * Records the port of the source switch a link starts at.
+     *
+     * @param ncId
+     *            The node connector the probe arrived at.
+     * @param srcNodeId
+     *            The switch the probe was sent from.
+     * @param peerNcId
+     *            The node connector the probe was sent out of.
+     */
+    public void learnPeer(String ncId, String srcNodeId, String peerNcId) {
+        getLinkState(ncId, srcNodeId, System.nanoTime()).peerNcId = peerNcId;
+    }
+
+    /**
+     * Forgets a switch that left the inventory: its discovery time and the
+     * links it is the source or the destination of.
+     *
+     * @param nodeId
+     *            The switch id.
+     */
+    public synchronized void remove(String nodeId) {
+        discoveryTimes.remove(nodeId);
+        String ncIdPrefix = nodeId + ":";
+        Iterator<LinkState> iterator = links.values().iterator();
+        while (iterator.hasNext()) {
+            LinkState state = iterator.next();
+            if (state.srcNodeId.equals(nodeId) || state.ncId.startsWith(ncIdPrefix)) {
+                iterator.remove();
+                // drops the entries of the link still in the queue
+                state.generation++;
+            }
+        }
+    }
+
+    /**
+     * Sends the targeted probes of all links that are due, most overdue
+     * first, up to the per-tick budget.
+     */
+    @Override
+    public void run() {
+        try {
+            List<String> probeNcIds = new ArrayList<>();
+            List<String> discoverNodeIds = new ArrayList<>();
+            tick(System.nanoTime(), probeNcIds, discoverNodeIds);
+            // packet-outs are sent outside the lock, so record() is not held up by them
+            for (String peerNcId : probeNcIds) {
+                linkProber.probeLink(peerNcId);
+            }
+            for (String srcNodeId : discoverNodeIds) {
+                linkProber.discoverSwitch(srcNodeId);
+            }
+        } catch (RuntimeException e) {
+            LOG.warn("Adaptive probing tick failed", e);
+        }
+    }
+
+    /**
+     * Picks the due links to probe and the switches to discover within the
+     * budget. A discovery costs one probe per port and waits for a tick with
+     * enough budget left; a switch with more ports than a whole tick allows
+     * is discovered alone in a tick of its own.
+     */
+    private synchronized void tick(long now, List<String> probeNcIds, List<String> discoverNodeIds) {
+        int budget = probesPerTick;
+        List<LinkState> deferred = new ArrayList<>();
+        while (budget > 0 && !dueLinks.isEmpty() && dueLinks.peek().due <= now) {
+            DueLink dueLink = dueLinks.poll();
+            LinkState state = dueLink.state;
+            if (dueLink.generation != state.generation) {
+                continue;
+            }
+            if (now - state.lastMeasured > EXPIRY_INTERVALS * maxIntervalNanos) {
+                links.remove(state.ncId, state);
+                continue;
+            }
+            long nextDue = state.lastMeasured + state.interval;
+            if (nextDue > now) {
+                // measured by a flood round in the meantime
+                schedule(state, nextDue);
+                continue;
+            }
+            String peerNcId = state.peerNcId;
+            if (peerNcId != null) {
+                probeNcIds.add(peerNcId);
+                budget--;
+            } else if (isDiscoveryDue(state.srcNodeId, now)) {
+                int ports = linkProber.getPortCount(state.srcNodeId);
+                if (ports > budget && budget < probesPerTick) {
+                    deferred.add(state);
+                    continue;
+                }
+                discoveryTimes.put(state.srcNodeId, now);
+                discoverNodeIds.add(state.srcNodeId);
+                budget -= Math.min(ports, budget);
+            }
+            schedule(state, now + state.interval);
+        }
+        for (LinkState state : deferred) {
+            schedule(state, now);
+        }
+    }
+
+    private boolean isDiscoveryDue(String srcNodeId, long now) {
+        Long lastDiscovery = discoveryTimes.get(srcNodeId);
+        return lastDiscovery == null || now - lastDiscovery >= maxIntervalNanos;
+    }
+
+    private LinkState getLinkState(String ncId, String srcNodeId, long now) {
+        LinkState state = links.get(ncId);
+        if (state == null) {
+            state = new LinkState(ncId, srcNodeId, now, minIntervalNanos);
+            LinkState existing = links.putIfAbsent(ncId, state);
+            if (existing != null) {
+                return existing;
+            }
+            schedule(state, now + minIntervalNanos);
+        }
+        return state;
+    }
+
+    private synchronized void schedule(LinkState state, long due) {
+        state.generation++;
+        dueLinks.add(new DueLink(state, due, state.generation));
+    }
+
+    private static class LinkState {
+        private final String ncId;
+        private final String srcNodeId;
+        private volatile String peerNcId;
+        private volatile long lastMeasured;
+        private volatile long interval;
+        // guarded by the scheduler
+        private long generation;
+        // guarded by this
+        private double mean;
+        private double variance;
+        private int samples;
+
+        LinkState(String ncId, String srcNodeId, long now, long interval) {
+            this.ncId = ncId;
+            this.srcNodeId = srcNodeId;
+            this.lastMeasured = now;
+            this.interval = interval;
+        }
+
+        /**
+         * Folds a sample into the EWMA mean and variance and derives the new
+         * probe interval.
+         *
+         * @return true if the sample is a significant change of the delay
+         */
+        synchronized boolean update(long delay, long now, long minInterval, long maxInterval) {
+            lastMeasured = now;
+            if (samples++ == 0) {
+                mean = delay;
+                return false;
+            }
+            double diff = delay - mean;
+            boolean changed = samples > MIN_SAMPLES
+                    && Math.abs(diff) > CHANGE_SIGMAS * Math.sqrt(variance)
+                    && Math.abs(diff) > CHANGE_FRACTION * mean;
+            mean += EWMA_WEIGHT * diff;
+            variance = (1 - EWMA_WEIGHT) * (variance + EWMA_WEIGHT * diff * diff);
+
+            double cv = Math.sqrt(variance) / Math.max(mean, 1.0);
+            long target = Math.max(minInterval, (long) (maxInterval / (1.0 + VOLATILITY_GAIN * cv)));
+            if (changed) {
+                interval = minInterval;
+            } else if (target < interval) {
+                interval = target;
+            } else {
+                interval = Math.min(target, interval * 2);
+            }
+            return changed;
+        }
+    }
+
+    private static class DueLink implements Comparable<DueLink> {
+        private final LinkState state;
+        private final long due;
+        private final long generation;
+
+        DueLink(LinkState state, long due, long generation) {
+            this.state = state;
+            this.due = due;
+            this.generation = generation;
+        }
+
+        @Override
+        public int compareTo(DueLink other) {
+            return Long.compare(due, other.due);
+        }
+    }
+}
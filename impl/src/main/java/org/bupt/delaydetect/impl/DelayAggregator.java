@@ -0,0 +1,264 @@
+/*
+ * Copyright © 2017 bupt.dtj and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.bupt.delaydetect.impl;
+
+import org.opendaylight.yang.gen.v1.urn.opendaylight.packet.delaydetect.config.rev181107.DelaydetectConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * DelayAggregator turns probe records into link delays in the LinkStore,
+ * off the packet-in notification thread. Records are partitioned by link
+ * index over one ProbeRecordRing per worker, so all samples of a link are
+ * aggregated in order by the same worker. Samples out of range are dropped,
+ * the rest pass the LinkDelayFilter. A probe only updates its own link, and
+ * an echo estimate change of a switch only refreshes the links attached to
+ * that switch. The refresh is queued to every worker, which republishes the
+ * attached links it owns, so a link is never published by two threads.
+ * An idle worker parks for longer and longer, up to a few milliseconds.
+ */
+public class DelayAggregator {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DelayAggregator.class);
+    private static final long MAX_LINK_DELAY = 100000000L;
+    private static final long NO_ECHO = Long.MIN_VALUE;
+    private static final int BATCH_SIZE = 256;
+    private static final long MIN_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+    private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+
+    private final LinkStore linkStore;
+    private final LinkHistograms linkHistograms;
+    private final LinkRollups linkRollups;
+    private final LinkDelayFilter linkDelayFilter;
+    private final LinkHealth linkHealth;
+    private final EchoDelayEstimator echoDelayEstimator;
+    private final ProbeRecordRing[] rings;
+    // Index: worker, Value: switches whose echo estimate changed since the worker last looked
+    private final Queue<String>[] refreshQueues;
+    private final ExecutorService workers;
+    private volatile AdaptiveProbeScheduler adaptiveProbeScheduler;
+    private volatile DelayHistory delayHistory;
+    private volatile DelayChangeNotifier delayChangeNotifier;
+    private volatile boolean running = true;
+
+    public DelayAggregator(DelaydetectConfig delaydetectConfig, LinkStore linkStore, LinkHistograms linkHistograms,
+                           LinkRollups linkRollups, LinkDelayFilter linkDelayFilter, LinkHealth linkHealth,
+                           EchoDelayEstimator echoDelayEstimator) {
+        this.linkStore = linkStore;
+        this.linkHistograms = linkHistograms;
+        this.linkRollups = linkRollups;
+        this.linkDelayFilter = linkDelayFilter;
+        this.linkHealth = linkHealth;
+        this.echoDelayEstimator = echoDelayEstimator;
+        int workerCount = Math.max(1, delaydetectConfig.getAggregationWorkers());
+        int ringCapacity = (int) Math.max(1L, Math.min(1 << 24, delaydetectConfig.getRingCapacity() / workerCount));
+        this.rings = new ProbeRecordRing[workerCount];
+        this.refreshQueues = new Queue[workerCount];
+        this.workers = Executors.newFixedThreadPool(workerCount);
+        for (int i = 0; i < workerCount; i++) {
+            rings[i] = new ProbeRecordRing(ringCapacity);
+            refreshQueues[i] = new ConcurrentLinkedQueue<>();
+            workers.execute(new Worker(i));
+        }
+    }
+
+    public void setAdaptiveProbeScheduler(AdaptiveProbeScheduler adaptiveProbeScheduler) {
+        this.adaptiveProbeScheduler = adaptiveProbeScheduler;
+    }
+
+    public void setDelayHistory(DelayHistory delayHistory) {
+        this.delayHistory = delayHistory;
+    }
+
+    public void setDelayChangeNotifier(DelayChangeNotifier delayChangeNotifier) {
+        this.delayChangeNotifier = delayChangeNotifier;
+    }
+
+    /**
+     * Hands a received probe to the worker of its link.
+     *
+     * @return false if the ring of the worker is full and the probe is dropped
+     */
+    public boolean offer(int link, long arrivalTime, long sendTime, long srcDpid, long egressPort, long sequence) {
+        return rings[link % rings.length].offer(link, arrivalTime, sendTime, srcDpid, egressPort, sequence);
+    }
+
+    /**
+     * @return the number of probes waiting for aggregation
+     */
+    public int getBacklog() {
+        int backlog = 0;
+        for (ProbeRecordRing ring : rings) {
+            backlog += ring.getBacklog();
+        }
+        return backlog;
+    }
+
+    /**
+     * @return the number of probes dropped because a ring was full
+     */
+    public long getDropped() {
+        long dropped = 0;
+        for (ProbeRecordRing ring : rings) {
+            dropped += ring.getDropped();
+        }
+        return dropped;
+    }
+
+    /**
+     * Has the workers refresh the delays of the links attached to a switch
+     * whose echo estimate has changed.
+     *
+     * @param nodeId
+     *            The switch id.
+     */
+    public void onEchoEstimateChanged(String nodeId) {
+        for (Queue<String> refreshQueue : refreshQueues) {
+            refreshQueue.add(nodeId);
+        }
+    }
+
+    public void close() {
+        running = false;
+        workers.shutdownNow();
+    }
+
+    private void aggregate(int link, long arrivalTime, long sendTime, long srcDpid, long egressPort, long sequence) {
+        int srcSwitch = linkStore.setSource(link, srcDpid);
+        linkHealth.onProbe(link, srcSwitch, sequence);
+        long loopDelay = arrivalTime - sendTime;
+        AdaptiveProbeScheduler adaptiveProbeScheduler = this.adaptiveProbeScheduler;
+        if (adaptiveProbeScheduler != null && egressPort != 0) {
+            String srcNodeId = linkStore.getSwitchId(srcSwitch);
+            adaptiveProbeScheduler.learnPeer(linkStore.getNcId(link), srcNodeId, srcNodeId + ":" + egressPort);
+        }
+
+        long rawDelay = correct(link, loopDelay);
+        if (rawDelay != NO_ECHO && (rawDelay < 0 || rawDelay > MAX_LINK_DELAY)) {
+            linkDelayFilter.rejectOutOfRange(link);
+            return;
+        }
+        long filteredDelay = linkDelayFilter.filter(link, loopDelay);
+        if (filteredDelay < 0) {
+            return;
+        }
+        linkStore.setLoopDelay(link, filteredDelay);
+
+        long linkDelay = publish(link);
+        if (linkDelay >= 0) {
+            linkHistograms.record(link, linkDelay);
+            linkRollups.record(link, linkDelay, linkStore.getUpdateTime(link));
+            if (adaptiveProbeScheduler != null) {
+                adaptiveProbeScheduler.record(linkStore.getNcId(link), linkStore.getSwitchId(srcSwitch), linkDelay);
+            }
+        }
+    }
+
+    /**
+     * Corrects the filtered loop delay of a link and publishes it.
+     *
+     * @return the link delay in nanoseconds, -1 if it could not be published
+     */
+    private long publish(int link) {
+        long linkDelay = correct(link, linkStore.getLoopDelay(link));
+        if (linkDelay < 0 || linkDelay > MAX_LINK_DELAY) {
+            return -1;
+        }
+        long updateTime = System.currentTimeMillis();
+        linkStore.setDelay(link, linkDelay, updateTime);
+        DelayHistory delayHistory = this.delayHistory;
+        if (delayHistory != null) {
+            delayHistory.append(link, updateTime, linkDelay);
+        }
+        DelayChangeNotifier delayChangeNotifier = this.delayChangeNotifier;
+        if (delayChangeNotifier != null) {
+            delayChangeNotifier.onDelay(link, linkDelay, updateTime);
+        }
+        return linkDelay;
+    }
+
+    /**
+     * Corrects a loop delay of a link by half the echo RTT of both of its
+     * switches.
+     *
+     * @return the link delay in nanoseconds, NO_ECHO if an echo RTT is unknown
+     */
+    private long correct(int link, long loopDelay) {
+        int srcSwitch = linkStore.getSrcSwitch(link);
+        if (srcSwitch < 0) {
+            return NO_ECHO;
+        }
+        long echo1 = echoDelayEstimator.getEstimate(linkStore.getSwitchId(linkStore.getDstSwitch(link)));
+        long echo2 = echoDelayEstimator.getEstimate(linkStore.getSwitchId(srcSwitch));
+        if (echo1 == 0 || echo2 == 0) {
+            return NO_ECHO;
+        }
+        return loopDelay - echo1 / 2 - echo2 / 2;
+    }
+
+    private class Worker implements Runnable, ProbeRecordRing.RecordHandler {
+        private final int index;
+        private final ProbeRecordRing ring;
+        private final Queue<String> refreshQueue;
+
+        Worker(int index) {
+            this.index = index;
+            this.ring = rings[index];
+            this.refreshQueue = refreshQueues[index];
+        }
+
+        @Override
+        public void run() {
+            long parkNanos = MIN_PARK_NANOS;
+            while (running && !Thread.currentThread().isInterrupted()) {
+                try {
+                    if (ring.drain(this, BATCH_SIZE) + refresh() > 0) {
+                        parkNanos = MIN_PARK_NANOS;
+                    } else {
+                        LockSupport.parkNanos(parkNanos);
+                        parkNanos = Math.min(MAX_PARK_NANOS, parkNanos * 2);
+                    }
+                } catch (RuntimeException e) {
+                    LOG.warn("Delay aggregation failed", e);
+                }
+            }
+        }
+
+        @Override
+        public void onRecord(int link, long arrivalTime, long sendTime, long srcDpid, long egressPort, long sequence) {
+            aggregate(link, arrivalTime, sendTime, srcDpid, egressPort, sequence);
+        }
+
+        /**
+         * Republishes the links of this worker attached to the switches
+         * whose echo estimate changed.
+         *
+         * @return the number of switches refreshed
+         */
+        private int refresh() {
+            int refreshed = 0;
+            String nodeId;
+            while ((nodeId = refreshQueue.poll()) != null) {
+                for (int link : linkStore.getSwitchLinks(nodeId)) {
+                    if (link % rings.length == index) {
+                        publish(link);
+                    }
+                }
+                refreshed++;
+            }
+            return refreshed;
+        }
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright © 2017 bupt.dtj and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.bupt.delaydetect.impl;
+
+import org.opendaylight.controller.sal.binding.api.NotificationProviderService;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.packet.delaydetect.config.rev181107.DelaydetectConfig;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.delaydetect.rev150105.LinkDelayChangedBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.delaydetect.rev150105.link.delay.changed.ChangedLink;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.delaydetect.rev150105.link.delay.changed.ChangedLinkBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.delaydetect.rev150105.link.delay.changed.ChangedLinkKey;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * DelayChangeNotifier publishes a link-delay-changed notification when the
+ * delay of a link moves away from the delay last notified by more than the
+ * absolute or the relative threshold, or crosses the delay level. A link
+ * above the level only counts as below it again once its delay drops under
+ * the level by the hysteresis. A link notifies at most once per minimum
+ * interval; a change held back by this is notified with a later sample.
+ * A link whose delay is withdrawn is notified as withdrawn right away, and
+ * its next delay is notified as a change again. Changes are coalesced per
+ * link and published together once per batch interval.
+ */
+public class DelayChangeNotifier implements Runnable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DelayChangeNotifier.class);
+    private static final int CHUNK_BITS = 12;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+    private static final int MAX_CHUNKS = 1 << 16;
+
+    private final NotificationProviderService notificationProviderService;
+    private final LinkStore linkStore;
+    private final long absoluteThreshold;
+    private final long relativeThreshold;
+    private final long level;
+    private final long levelHysteresis;
+    private final long minIntervalMillis;
+    private final AtomicReferenceArray<LinkNotifyState[]> stateChunks = new AtomicReferenceArray<>(MAX_CHUNKS);
+    // links with a change not yet published
+    private final Queue<Integer> pendingLinks = new ConcurrentLinkedQueue<>();
+
+    public DelayChangeNotifier(DelaydetectConfig delaydetectConfig, NotificationProviderService notificationProviderService,
+                               LinkStore linkStore) {
+        this.notificationProviderService = notificationProviderService;
+        this.linkStore = linkStore;
+        this.absoluteThreshold = delaydetectConfig.getNotifyAbsoluteThreshold();
+        this.relativeThreshold = delaydetectConfig.getNotifyRelativeThreshold();
+        this.level = delaydetectConfig.getNotifyLevel();
+        this.levelHysteresis = level * delaydetectConfig.getNotifyHysteresis() / 100;
+        this.minIntervalMillis = delaydetectConfig.getNotifyMinInterval();
+    }
+
+    /**
+     * @return milliseconds between two published notifications
+     */
+    public static long getBatchInterval(DelaydetectConfig delaydetectConfig) {
+        return Math.max(1L, delaydetectConfig.getNotifyBatchInterval());
+    }
+
+    /**
+     * Checks a published delay of a link against the thresholds.
+     *
+     * @param link
+     *            The link index in the LinkStore.
+     * @param delay
+     *            The link delay in nanoseconds.
+     * @param timestamp
+     *            The wall clock time of the delay in milliseconds.
+     */
+    public void onDelay(int link, long delay, long timestamp) {
+        if (getState(link).onDelay(delay, timestamp)) {
+            pendingLinks.add(link);
+        }
+    }
+
+    /**
+     * Notes that the delay of a link was withdrawn.
+     *
+     * @param link
+     *            The link index in the LinkStore.
+     * @param timestamp
+     *            The wall clock time of the withdrawal in milliseconds.
+     */
+    public void onWithdrawn(int link, long timestamp) {
+        if (getState(link).onWithdrawn(timestamp)) {
+            pendingLinks.add(link);
+        }
+    }
+
+    /**
+     * Publishes the coalesced changes of all links in one notification.
+     */
+    @Override
+    public void run() {
+        try {
+            List<ChangedLink> changedLinks = new ArrayList<>();
+            Integer link;
+            while ((link = pendingLinks.poll()) != null) {
+                ChangedLink changedLink = getState(link).takePending(linkStore.getNcId(link));
+                if (changedLink != null) {
+                    changedLinks.add(changedLink);
+                }
+            }
+            if (!changedLinks.isEmpty()) {
+                notificationProviderService.publish(new LinkDelayChangedBuilder().setChangedLink(changedLinks).build());
+            }
+        } catch (RuntimeException e) {
+            LOG.warn("Failed to publish delay changes", e);
+        }
+    }
+
+    private LinkNotifyState getState(int link) {
+        LinkNotifyState[] chunk = stateChunks.get(link >>> CHUNK_BITS);
+        if (chunk == null) {
+            stateChunks.compareAndSet(link >>> CHUNK_BITS, null, new LinkNotifyState[CHUNK_SIZE]);
+            chunk = stateChunks.get(link >>> CHUNK_BITS);
+        }
+        LinkNotifyState state = chunk[link & CHUNK_MASK];
+        if (state == null) {
+            synchronized (chunk) {
+                state = chunk[link & CHUNK_MASK];
+                if (state == null) {
+                    state = new LinkNotifyState();
+                    chunk[link & CHUNK_MASK] = state;
+                }
+            }
+        }
+        return state;
+    }
+
+    private class LinkNotifyState {
+        // -1 until the first delay of the link
+        private long notifiedDelay = -1;
+        private long notifiedTime;
+        private boolean aboveLevel;
+        private boolean withdrawn;
+        private boolean pending;
+        private long pendingDelay;
+        // -1 if the link had no delay before the pending change
+        private long previousDelay;
+
+        /**
+         * @return true if the link has become pending
+         */
+        synchronized boolean onDelay(long delay, long timestamp) {
+            if (withdrawn) {
+                // a link coming back is a change whatever the thresholds say
+                withdrawn = false;
+                aboveLevel = level > 0 && delay > level;
+                notifiedDelay = delay;
+                notifiedTime = timestamp;
+                pendingDelay = delay;
+                if (pending) {
+                    // the withdrawal was not published yet, so only the new delay is
+                    return false;
+                }
+                previousDelay = -1;
+                pending = true;
+                return true;
+            }
+            if (notifiedDelay < 0) {
+                // the first delay is the baseline, not a change
+                notifiedDelay = delay;
+                notifiedTime = timestamp;
+                aboveLevel = level > 0 && delay > level;
+                return false;
+            }
+            if (pending) {
+                // coalesce into the change that is waiting for the batch
+                if (crossesLevel(delay)) {
+                    aboveLevel = !aboveLevel;
+                }
+                pendingDelay = delay;
+                return false;
+            }
+            boolean crossed = crossesLevel(delay);
+            long change = Math.abs(delay - notifiedDelay);
+            boolean changed = crossed
+                    || absoluteThreshold > 0 && change >= absoluteThreshold
+                    || relativeThreshold > 0 && change > 0 && change * 100 >= relativeThreshold * notifiedDelay;
+            if (!changed || timestamp - notifiedTime < minIntervalMillis) {
+                return false;
+            }
+            if (crossed) {
+                aboveLevel = !aboveLevel;
+            }
+            previousDelay = notifiedDelay;
+            notifiedDelay = delay;
+            notifiedTime = timestamp;
+            pendingDelay = delay;
+            pending = true;
+            return true;
+        }
+
+        /**
+         * @return true if the link has become pending
+         */
+        synchronized boolean onWithdrawn(long timestamp) {
+            if (notifiedDelay < 0 || withdrawn) {
+                return false;
+            }
+            withdrawn = true;
+            aboveLevel = false;
+            notifiedTime = timestamp;
+            if (pending) {
+                return false;
+            }
+            previousDelay = notifiedDelay;
+            pending = true;
+            return true;
+        }
+
+        synchronized ChangedLink takePending(String ncId) {
+            if (!pending) {
+                return null;
+            }
+            pending = false;
+            ChangedLinkBuilder changedLinkBuilder = new ChangedLinkBuilder()
+                    .setKey(new ChangedLinkKey(ncId))
+                    .setAboveLevel(aboveLevel);
+            if (withdrawn) {
+                changedLinkBuilder.setWithdrawn(true);
+            } else {
+                notifiedDelay = pendingDelay;
+                changedLinkBuilder.setDelay(pendingDelay);
+            }
+            if (previousDelay >= 0) {
+                changedLinkBuilder.setPreviousDelay(previousDelay);
+            }
+            return changedLinkBuilder.build();
+        }
+
+        private boolean crossesLevel(long delay) {
+            if (level <= 0) {
+                return false;
+            }
+            return aboveLevel ? delay < level - levelHysteresis : delay > level;
+        }
+    }
+}
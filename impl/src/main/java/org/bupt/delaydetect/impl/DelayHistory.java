@@ -0,0 +1,342 @@
+/*
+ * Copyright © 2017 bupt.dtj and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.bupt.delaydetect.impl;
+
+import org.opendaylight.yang.gen.v1.urn.opendaylight.packet.delaydetect.config.rev181107.DelaydetectConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * DelayHistory appends every published link delay to memory-mapped segment
+ * files as a fixed-width 16 byte record: the wall clock time in
+ * milliseconds, the link id and the delay in nanoseconds. A record with a
+ * zero time ends a segment. Segments are named after the time of their
+ * first record, roll over when full and are deleted once they are older than
+ * the retention.
+ *
+ * <p>The link id of a record is the link index of the LinkStore. The
+ * dictionary file lists the node connector of every id; it is loaded into
+ * the empty LinkStore on start, so link indexes and ids stay stable across
+ * restarts.
+ *
+ * <p>Aggregation workers hand records to a single writer thread through a
+ * ProbeRecordRing and never wait for the disk; a full ring drops the record.
+ * A record that fails to be written is lost and the writer carries on with
+ * a new segment after a pause, so a full disk only drops records.
+ *
+ * <p>Queries keep the read-only mappings of the segments they last read
+ * and binary search a segment for the start of the requested window, so a
+ * query only touches the pages of its window. Records are appended in
+ * nearly ascending time; the search allows for a record appended up to
+ * {@link #ORDER_SLACK_MILLIS} after a record with a later time.
+ */
+public class DelayHistory {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DelayHistory.class);
+    private static final int RECORD_LENGTH = 16;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String DICTIONARY = "links.dict";
+    private static final int RING_CAPACITY = 1 << 16;
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long FAILURE_PARK_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final int MAX_READ_MAPPINGS = 16;
+    private static final long ORDER_SLACK_MILLIS = 1000;
+    private static final FilenameFilter SEGMENT_FILTER = new FilenameFilter() {
+        @Override
+        public boolean accept(File dir, String name) {
+            return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+        }
+    };
+
+    private final LinkStore linkStore;
+    private final File directory;
+    private final int segmentSize;
+    private final long retentionMillis;
+    // a history record is a probe record with the time as arrival time and the delay as send time
+    private final ProbeRecordRing ring = new ProbeRecordRing(RING_CAPACITY);
+    private final ExecutorService writer = Executors.newSingleThreadExecutor();
+    private volatile boolean running = true;
+    // Key: segment file, Value: its read-only mapping, least recently queried first
+    private final Map<File, MappedByteBuffer> readMappings = new LinkedHashMap<File, MappedByteBuffer>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<File, MappedByteBuffer> eldest) {
+            return size() > MAX_READ_MAPPINGS;
+        }
+    };
+
+    // accessed by the writer thread only
+    private MappedByteBuffer segment;
+    private long segmentStart;
+    private BufferedWriter dictionary;
+    private int dictionarySize;
+
+    public DelayHistory(DelaydetectConfig delaydetectConfig, LinkStore linkStore) {
+        this.linkStore = linkStore;
+        this.directory = new File(delaydetectConfig.getHistoryDirectory());
+        this.segmentSize = (int) Math.min(Integer.MAX_VALUE / RECORD_LENGTH * RECORD_LENGTH,
+                Math.max(1L, delaydetectConfig.getHistorySegmentSize()) * 1024 * 1024);
+        this.retentionMillis = TimeUnit.HOURS.toMillis(delaydetectConfig.getHistoryRetention());
+    }
+
+    /**
+     * Loads the link dictionary into the LinkStore and starts the writer.
+     * Must be called before the first link is interned.
+     *
+     * @throws IOException if the history directory cannot be used
+     */
+    public void start() throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create history directory " + directory);
+        }
+        File dictionaryFile = new File(directory, DICTIONARY);
+        if (dictionaryFile.exists()) {
+            try (BufferedReader reader = Files.newBufferedReader(dictionaryFile.toPath(), StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    int separator = line.indexOf(' ');
+                    if (separator < 0) {
+                        continue;
+                    }
+                    int id = Integer.parseInt(line.substring(0, separator));
+                    if (linkStore.intern(line.substring(separator + 1)) != id) {
+                        throw new IOException("History dictionary " + dictionaryFile + " does not match the link store");
+                    }
+                    dictionarySize = id + 1;
+                }
+            }
+        }
+        dictionary = Files.newBufferedWriter(dictionaryFile.toPath(), StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        writer.execute(new Writer());
+    }
+
+    /**
+     * Hands a published delay to the writer without waiting.
+     *
+     * @return false if the ring is full and the record is dropped
+     */
+    public boolean append(int link, long timestamp, long delay) {
+        return ring.offer(link, timestamp, delay, 0L, 0L, 0L);
+    }
+
+    public long getDropped() {
+        return ring.getDropped();
+    }
+
+    /**
+     * Scans the segments for the records of a link within a time window.
+     *
+     * @param link
+     *            The link index in the LinkStore.
+     * @param startTime
+     *            The first wall clock time in milliseconds, inclusive.
+     * @param endTime
+     *            The last wall clock time in milliseconds, inclusive.
+     * @param maxRecords
+     *            The maximum number of records returned.
+     * @return pairs of time and delay, oldest first
+     */
+    public List<long[]> query(int link, long startTime, long endTime, int maxRecords) {
+        List<long[]> records = new ArrayList<>();
+        long searchTime = startTime < ORDER_SLACK_MILLIS ? 0L : startTime - ORDER_SLACK_MILLIS;
+        File[] segments = listSegments();
+        for (int i = 0; i < segments.length && records.size() < maxRecords; i++) {
+            if (segmentStart(segments[i]) > endTime
+                    || i + 1 < segments.length && segmentStart(segments[i + 1]) < startTime) {
+                continue;
+            }
+            ByteBuffer buffer;
+            try {
+                buffer = getReadMapping(segments[i]);
+            } catch (IOException e) {
+                LOG.warn("Failed to read history segment {}", segments[i], e);
+                continue;
+            }
+            int position = findRecord(buffer, searchTime);
+            for (; position + RECORD_LENGTH <= buffer.limit(); position += RECORD_LENGTH) {
+                long timestamp = buffer.getLong(position);
+                if (timestamp == 0 || timestamp - ORDER_SLACK_MILLIS > endTime) {
+                    break;
+                }
+                if (timestamp >= startTime && timestamp <= endTime && buffer.getInt(position + 8) == link) {
+                    records.add(new long[]{timestamp, buffer.getInt(position + 12) & 0xFFFFFFFFL});
+                    if (records.size() >= maxRecords) {
+                        break;
+                    }
+                }
+            }
+        }
+        return records;
+    }
+
+    private ByteBuffer getReadMapping(File segmentFile) throws IOException {
+        synchronized (readMappings) {
+            MappedByteBuffer mapping = readMappings.get(segmentFile);
+            if (mapping == null) {
+                try (RandomAccessFile file = new RandomAccessFile(segmentFile, "r");
+                     FileChannel channel = file.getChannel()) {
+                    mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                }
+                // a segment the writer has only just created may not have its size yet
+                if (mapping.capacity() > 0) {
+                    readMappings.put(segmentFile, mapping);
+                }
+            }
+            // the mapping of the current segment shows the records written after it was made
+            return mapping.duplicate();
+        }
+    }
+
+    /**
+     * @return the offset of the first record at or after a time, or of the
+     *         end of the segment
+     */
+    private static int findRecord(ByteBuffer buffer, long time) {
+        int low = 0;
+        int high = buffer.limit() / RECORD_LENGTH;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            long timestamp = buffer.getLong(middle * RECORD_LENGTH);
+            // the records past the end of the segment have a zero time
+            if (timestamp != 0 && timestamp < time) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low * RECORD_LENGTH;
+    }
+
+    public void close() {
+        running = false;
+        writer.shutdown();
+        try {
+            writer.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void write(int link, long timestamp, long delay) throws IOException {
+        if (dictionarySize <= link) {
+            while (dictionarySize <= link) {
+                dictionary.write(dictionarySize + " " + linkStore.getNcId(dictionarySize));
+                dictionary.newLine();
+                dictionarySize++;
+            }
+            // a record must never name an id the dictionary file does not have yet
+            dictionary.flush();
+        }
+        if (segment == null || segment.remaining() < RECORD_LENGTH * 2) {
+            roll(timestamp);
+        }
+        segment.putInt(segment.position() + 8, link);
+        segment.putInt(segment.position() + 12, (int) delay);
+        // the time goes last; a zero time marks the end of the segment
+        segment.putLong(segment.position(), timestamp);
+        segment.position(segment.position() + RECORD_LENGTH);
+    }
+
+    private void roll(long timestamp) throws IOException {
+        if (segment != null) {
+            segment.force();
+        }
+        // segment names must stay unique even if two segments start in the same millisecond
+        segmentStart = Math.max(timestamp, segmentStart + 1);
+        File file = new File(directory, String.format("%s%020d%s", SEGMENT_PREFIX, segmentStart, SEGMENT_SUFFIX));
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+             FileChannel channel = randomAccessFile.getChannel()) {
+            segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        }
+        File[] segments = listSegments();
+        for (int i = 0; i + 1 < segments.length; i++) {
+            // a segment ends where the next one starts
+            if (segmentStart(segments[i + 1]) < timestamp - retentionMillis) {
+                synchronized (readMappings) {
+                    readMappings.remove(segments[i]);
+                }
+                if (!segments[i].delete()) {
+                    LOG.warn("Failed to delete history segment {}", segments[i]);
+                }
+            }
+        }
+    }
+
+    private File[] listSegments() {
+        File[] segments = directory.listFiles(SEGMENT_FILTER);
+        if (segments == null) {
+            return new File[0];
+        }
+        Arrays.sort(segments);
+        return segments;
+    }
+
+    private static long segmentStart(File segment) {
+        String name = segment.getName();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    private class Writer implements Runnable, ProbeRecordRing.RecordHandler {
+
+        @Override
+        public void run() {
+            while (running || ring.getBacklog() > 0) {
+                try {
+                    if (ring.drain(this, RING_CAPACITY) == 0) {
+                        LockSupport.parkNanos(IDLE_PARK_NANOS);
+                    }
+                } catch (RuntimeException e) {
+                    LOG.warn("Failed to write delay history", e);
+                    segment = null;
+                    LockSupport.parkNanos(FAILURE_PARK_NANOS);
+                }
+            }
+            try {
+                if (segment != null) {
+                    segment.force();
+                }
+                dictionary.close();
+            } catch (IOException | RuntimeException e) {
+                LOG.warn("Failed to close delay history", e);
+            }
+        }
+
+        @Override
+        public void onRecord(int link, long timestamp, long delay, long srcDpid, long egressPort, long sequence) {
+            try {
+                write(link, timestamp, delay);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
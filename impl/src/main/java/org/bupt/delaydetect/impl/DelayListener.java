@@ -7,93 +7,57 @@
  */
 package org.bupt.delaydetect.impl;
 
-import org.opendaylight.controller.liblldp.BitBufferHelper;
+import org.bupt.delaydetect.impl.util.ProbeCodec;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.node.NodeConnector;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.node.NodeConnectorKey;
-import org.opendaylight.yang.gen.v1.urn.opendaylight.packet.basepacket.rev140528.packet.chain.grp.PacketChain;
-import org.opendaylight.yang.gen.v1.urn.opendaylight.packet.basepacket.rev140528.packet.chain.grp.packet.chain.packet.RawPacket;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.packet.delaydetect.config.rev181107.DelaydetectConfig;
-import org.opendaylight.yang.gen.v1.urn.opendaylight.packet.ethernet.rev140528.ethernet.packet.received.packet.chain.packet.EthernetPacket;
-import org.opendaylight.yang.gen.v1.urn.opendaylight.packet.ipv4.rev140528.Ipv4PacketListener;
-import org.opendaylight.yang.gen.v1.urn.opendaylight.packet.ipv4.rev140528.Ipv4PacketReceived;
-import org.opendaylight.yang.gen.v1.urn.opendaylight.packet.ipv4.rev140528.KnownIpProtocols;
-import org.opendaylight.yang.gen.v1.urn.opendaylight.packet.ipv4.rev140528.ipv4.packet.received.packet.chain.packet.Ipv4Packet;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.packet.service.rev130709.PacketProcessingListener;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.packet.service.rev130709.PacketReceived;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.nio.ByteBuffer;
 
-public class DelayListener implements Ipv4PacketListener {
+/**
+ * DelayListener picks probes out of the packet-ins and hands them to the
+ * DelayAggregator. The notification thread only decodes the fixed probe
+ * fields, interns the link and publishes a record into a ring, so it
+ * returns without waiting for aggregation.
+ */
+public class DelayListener implements PacketProcessingListener {
 
     private static final Logger LOG = LoggerFactory.getLogger(DelayListener.class);
     private DelaydetectConfig delaydetectConfig;
-    private Map<String, Long> delayMap;
-    private Map<String, Long[]> loopDelayMap = new ConcurrentHashMap<>();
-    private Map<String, Long> echoDelayMap;
+    private LinkStore linkStore;
+    private DelayAggregator delayAggregator;
 
-    public DelayListener(DelaydetectConfig config, Map<String, Long> delayMap, Map<String, Long> echoDelayMap) {
+    public DelayListener(DelaydetectConfig config, LinkStore linkStore, DelayAggregator delayAggregator) {
         this.delaydetectConfig = config;
-        this.delayMap = delayMap;
-        this.echoDelayMap = echoDelayMap;
+        this.linkStore = linkStore;
+        this.delayAggregator = delayAggregator;
     }
 
+    /**
+     * Decodes probes straight from the raw packet-in payload. Anything that
+     * is not a probe is rejected by a few comparisons at fixed offsets.
+     */
     @Override
-    public void onIpv4PacketReceived(Ipv4PacketReceived ipv4PacketReceived) {
-
-        if (ipv4PacketReceived == null || ipv4PacketReceived.getPacketChain() == null) {
-            return;
-        }
-
+    public void onPacketReceived(PacketReceived packetReceived) {
         long Time2 = System.nanoTime();
-        RawPacket rawPacket = null;
-        EthernetPacket ethernetPacket = null;
-        Ipv4Packet ipv4Packet = null;
-        for (PacketChain packetChain : ipv4PacketReceived.getPacketChain()) {
-            if (packetChain.getPacket() instanceof RawPacket) {
-                rawPacket = (RawPacket) packetChain.getPacket();
-            } else if (packetChain.getPacket() instanceof EthernetPacket) {
-                ethernetPacket = (EthernetPacket) packetChain.getPacket();
-            } else if (packetChain.getPacket() instanceof Ipv4Packet) {
-                ipv4Packet = (Ipv4Packet) packetChain.getPacket();
-            }
-        }
-        if (rawPacket == null || ethernetPacket == null || ipv4Packet == null) {
+        if (packetReceived == null || packetReceived.getPayload() == null || packetReceived.getIngress() == null) {
             return;
         }
-        if (ipv4Packet.getProtocol() != KnownIpProtocols.Experimentation1) {
+        ByteBuffer frame = ByteBuffer.wrap(packetReceived.getPayload());
+        if (!ProbeCodec.isProbe(frame)) {
             return;
         }
 
-        byte[] option = ipv4Packet.getIpv4Options();
-        byte[] timeOption = new byte[]{0, 0, 0, 0, 0, 0, 0, 0};
-        byte[] idOption = new byte[]{0, 0, 0, 0, 0, 0, 0, 0};
-        for (int i = 0; i < timeOption.length; i++) {
-            timeOption[i] = option[i];
-            idOption[i] = option[i + 8];
-        }
-        long Time1 = BitBufferHelper.getLong(timeOption);
-        String ncId = rawPacket.getIngress().getValue().firstIdentifierOf(NodeConnector.class).firstKeyOf(NodeConnector.class, NodeConnectorKey.class).getId().getValue();
-        long delay = Time2 - Time1;
-        long rawNodeId = BitBufferHelper.getLong(idOption);
-        loopDelayMap.put(ncId, new Long[]{delay, rawNodeId});
-        //LOG.info(ncId + ": " + delay);
-
-        if (!loopDelayMap.isEmpty() && !echoDelayMap.isEmpty()) {
-            for (String ncid : loopDelayMap.keySet()) {
-                Long tmp = loopDelayMap.get(ncid)[0];
-                long echo1 = echoDelayMap.getOrDefault(ncIdToNodeId(ncId), 0L);
-                long echo2 = echoDelayMap.getOrDefault("openflow:" + loopDelayMap.get(ncId)[1], 0L);
-                tmp = tmp - echo1 / 2 - echo2 / 2;
-                if (tmp >= 0 && tmp <= 100000000L) {
-                    delayMap.put(ncid, tmp);
-                }
-            }
+        long Time1 = ProbeCodec.readSendTime(frame);
+        String ncId = packetReceived.getIngress().getValue().firstKeyOf(NodeConnector.class, NodeConnectorKey.class).getId().getValue();
+        int link = linkStore.intern(ncId);
+        if (!delayAggregator.offer(link, Time2, Time1, ProbeCodec.readSrcDpid(frame), ProbeCodec.readEgressPort(frame),
+                ProbeCodec.readSequence(frame))) {
+            LOG.debug("Aggregation ring full, dropped probe at {}", ncId);
         }
     }
-
-    private String ncIdToNodeId(String ncId) {
-        String[] info = ncId.split(":");
-        return info[0] + ":" + info[1];
-    }
 }
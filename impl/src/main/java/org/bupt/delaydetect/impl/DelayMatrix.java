@@ -0,0 +1,278 @@
+/*
+ * Copyright © 2017 bupt.dtj and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.bupt.delaydetect.impl;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * DelayMatrix keeps the minimum delay from every switch to every other
+ * switch in a dense row-major matrix, over the same link graph as the
+ * PathEngine but with the latest delays as weights. It follows the
+ * DelaySnapshots change log and repairs the matrix per changed link:
+ * a better or new link relaxes only the rows it shortens, against the row
+ * of the switch it ends at; a worse, moved or withdrawn link reruns Dijkstra
+ * only for the rows whose shortest paths it was on.
+ */
+public class DelayMatrix implements Runnable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DelayMatrix.class);
+    private static final long UNREACHABLE = Long.MAX_VALUE;
+
+    private final LinkStore linkStore;
+    private final DelaySnapshots delaySnapshots;
+    private final LongHeap heap = new LongHeap();
+    private long version;
+
+    // Index: link index
+    private long[] weights = new long[0];
+    private int[] edgeSources = new int[0];
+    private int[] edgeTargets = new int[0];
+    // Index: switch index, Value: links leaving the switch
+    private int[][] outLinks = new int[0][];
+    // the distance from switch i to switch j is at i * capacity + j; entries
+    // beyond size are never written and stay unreachable
+    private long[] distances = new long[0];
+    private int capacity;
+    private int size;
+
+    public DelayMatrix(LinkStore linkStore, DelaySnapshots delaySnapshots) {
+        this.linkStore = linkStore;
+        this.delaySnapshots = delaySnapshots;
+    }
+
+    /**
+     * Applies the link changes of the snapshots published since the last
+     * run.
+     */
+    @Override
+    public void run() {
+        try {
+            update();
+        } catch (RuntimeException e) {
+            LOG.warn("Failed to update the delay matrix", e);
+        }
+    }
+
+    /**
+     * Copies the matrix. Row and column i belong to the switch with index i
+     * in the LinkStore.
+     *
+     * @return the minimum delays in nanoseconds, -1 where there is no path
+     */
+    public synchronized long[][] getRows() {
+        long[][] rows = new long[size][size];
+        for (int source = 0; source < size; source++) {
+            for (int target = 0; target < size; target++) {
+                long distance = distances[source * capacity + target];
+                rows[source][target] = distance == UNREACHABLE ? -1 : distance;
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * Encodes the matrix as the number of switches n, the n switch ids in
+     * modified UTF-8 and the n * n delays row by row, all big-endian as
+     * written by DataOutputStream.
+     */
+    public byte[] dump() {
+        long[][] rows = getRows();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(4 + rows.length * (32 + rows.length * 8));
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(rows.length);
+            for (int source = 0; source < rows.length; source++) {
+                out.writeUTF(linkStore.getSwitchId(source));
+            }
+            for (long[] row : rows) {
+                for (long delay : row) {
+                    out.writeLong(delay);
+                }
+            }
+        } catch (IOException e) {
+            // a ByteArrayOutputStream does not throw
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private void update() {
+        DelaySnapshot snapshot = delaySnapshots.getSnapshot();
+        if (snapshot.getVersion() == version) {
+            return;
+        }
+        int[] changedLinks = delaySnapshots.getChangedLinks(version, snapshot.getVersion());
+        synchronized (this) {
+            if (changedLinks == null) {
+                // the change log has moved on, so every link is checked
+                changedLinks = new int[linkStore.size()];
+                for (int link = 0; link < changedLinks.length; link++) {
+                    changedLinks[link] = link;
+                }
+            }
+            for (int link : changedLinks) {
+                int position = snapshot.positionOf(link);
+                if (position >= 0) {
+                    setEdge(link, snapshot.getSrcSwitch(position), snapshot.getDelay(position));
+                } else {
+                    setEdge(link, -1, -1);
+                }
+            }
+            version = snapshot.getVersion();
+        }
+    }
+
+    private void setEdge(int link, int source, long weight) {
+        if (link >= weights.length) {
+            int length = Math.max(link + 1, weights.length * 2);
+            int oldLength = weights.length;
+            weights = Arrays.copyOf(weights, length);
+            edgeSources = Arrays.copyOf(edgeSources, length);
+            edgeTargets = Arrays.copyOf(edgeTargets, length);
+            Arrays.fill(edgeSources, oldLength, length, -1);
+        }
+        int oldSource = edgeSources[link];
+        long oldWeight = weights[link];
+        if (source == oldSource && weight == oldWeight) {
+            return;
+        }
+        int target = linkStore.getDstSwitch(link);
+        ensureSize(Math.max(target, source) + 1);
+
+        // rows whose shortest paths may run over the old edge
+        int[] affectedRows = null;
+        int affected = 0;
+        if (oldSource >= 0 && (source != oldSource || weight > oldWeight)) {
+            affectedRows = new int[size];
+            for (int row = 0; row < size; row++) {
+                long toSource = distances[row * capacity + oldSource];
+                if (toSource != UNREACHABLE && toSource + oldWeight == distances[row * capacity + target]) {
+                    affectedRows[affected++] = row;
+                }
+            }
+        }
+
+        if (source != oldSource) {
+            if (oldSource >= 0) {
+                removeOutLink(oldSource, link);
+            }
+            if (source >= 0) {
+                addOutLink(source, link);
+            }
+        }
+        edgeSources[link] = source;
+        edgeTargets[link] = target;
+        weights[link] = weight;
+
+        for (int i = 0; i < affected; i++) {
+            computeRow(affectedRows[i]);
+        }
+        if (source >= 0 && (source != oldSource || weight < oldWeight)) {
+            relax(source, target, weight);
+        }
+    }
+
+    /**
+     * Shortens the rows that reach a better or new edge, assuming the row of
+     * its target is exact.
+     */
+    private void relax(int source, int target, long weight) {
+        for (int row = 0; row < size; row++) {
+            long toSource = distances[row * capacity + source];
+            if (toSource == UNREACHABLE || toSource + weight >= distances[row * capacity + target]) {
+                continue;
+            }
+            long viaEdge = toSource + weight;
+            for (int column = 0; column < size; column++) {
+                long fromTarget = distances[target * capacity + column];
+                if (fromTarget != UNREACHABLE && viaEdge + fromTarget < distances[row * capacity + column]) {
+                    distances[row * capacity + column] = viaEdge + fromTarget;
+                }
+            }
+        }
+    }
+
+    private void computeRow(int row) {
+        int offset = row * capacity;
+        Arrays.fill(distances, offset, offset + size, UNREACHABLE);
+        distances[offset + row] = 0;
+        heap.clear();
+        heap.push(row);
+        while (!heap.isEmpty()) {
+            long entry = heap.pop();
+            int node = (int) (entry & LongHeap.NODE_MASK);
+            long distance = entry >>> LongHeap.NODE_BITS;
+            if (distance > distances[offset + node] || node >= outLinks.length || outLinks[node] == null) {
+                continue;
+            }
+            for (int link : outLinks[node]) {
+                int target = edgeTargets[link];
+                long candidate = distance + weights[link];
+                if (candidate < distances[offset + target]) {
+                    distances[offset + target] = candidate;
+                    heap.push(candidate << LongHeap.NODE_BITS | target);
+                }
+            }
+        }
+    }
+
+    /**
+     * Grows the matrix to a number of switches; a new switch only reaches
+     * itself.
+     */
+    private void ensureSize(int switches) {
+        if (switches <= size) {
+            return;
+        }
+        if (switches > capacity) {
+            int newCapacity = Math.max(switches, capacity * 2);
+            long[] newDistances = new long[newCapacity * newCapacity];
+            Arrays.fill(newDistances, UNREACHABLE);
+            for (int row = 0; row < size; row++) {
+                System.arraycopy(distances, row * capacity, newDistances, row * newCapacity, size);
+            }
+            distances = newDistances;
+            capacity = newCapacity;
+        }
+        for (int node = size; node < switches; node++) {
+            distances[node * capacity + node] = 0;
+        }
+        size = switches;
+    }
+
+    private void addOutLink(int source, int link) {
+        if (source >= outLinks.length) {
+            outLinks = Arrays.copyOf(outLinks, Math.max(source + 1, outLinks.length * 2));
+        }
+        int[] links = outLinks[source];
+        if (links == null) {
+            outLinks[source] = new int[]{link};
+        } else {
+            links = Arrays.copyOf(links, links.length + 1);
+            links[links.length - 1] = link;
+            outLinks[source] = links;
+        }
+    }
+
+    private void removeOutLink(int source, int link) {
+        int[] links = outLinks[source];
+        int[] remaining = new int[links.length - 1];
+        int count = 0;
+        for (int other : links) {
+            if (other != link) {
+                remaining[count++] = other;
+            }
+        }
+        outLinks[source] = remaining;
+    }
+}
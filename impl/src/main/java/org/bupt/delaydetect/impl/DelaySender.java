@@ -7,113 +7,151 @@
  */
 package org.bupt.delaydetect.impl;
 
-import org.bupt.delaydetect.impl.util.IPv4;
-import org.opendaylight.controller.liblldp.*;
-import org.opendaylight.controller.md.sal.binding.api.DataBroker;
 import org.bupt.delaydetect.impl.util.PacketDispatcher;
 import org.bupt.delaydetect.impl.util.InventoryReader;
-import org.opendaylight.yang.gen.v1.urn.opendaylight.echo.service.rev150305.SalEchoService;
-import org.opendaylight.yang.gen.v1.urn.opendaylight.echo.service.rev150305.SendEchoInput;
-import org.opendaylight.yang.gen.v1.urn.opendaylight.echo.service.rev150305.SendEchoInputBuilder;
-import org.opendaylight.yang.gen.v1.urn.opendaylight.echo.service.rev150305.SendEchoOutput;
+import org.bupt.delaydetect.impl.util.ProbeTemplateCache;
+import org.bupt.delaydetect.impl.util.ProbeTemplateCache.ProbeTemplate;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.NodeConnectorRef;
-import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.NodeId;
-import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.NodeRef;
-import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.Nodes;
-import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.nodes.Node;
-import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.nodes.NodeKey;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.packet.delaydetect.config.rev181107.DelaydetectConfig;
-import org.opendaylight.yang.gen.v1.urn.opendaylight.packet.ipv4.rev140528.KnownIpProtocols;
-import org.opendaylight.yang.gen.v1.urn.opendaylight.packet.service.rev130709.PacketProcessingService;
-import org.opendaylight.yangtools.yang.binding.InstanceIdentifier;
-import org.opendaylight.yangtools.yang.common.RpcResult;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.net.InetAddress;
-import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * DelaySender probes the switches of one ProbeScheduler shard. Every run is
+ * one bounded round: a probe is flooded out of each switch and an echo is
+ * sent to it, within the budget of the ProbeRateController.
+ */
 public class DelaySender implements Runnable {
     private static final Logger LOG = LoggerFactory.getLogger(DelaySender.class);
-    private final DataBroker dataBroker;
+    private static final int MAX_DEFERRED_PASSES = 2;
     private final DelaydetectConfig delaydetectConfig;
-    private final PacketProcessingService packetProcessingService;
-    private final SalEchoService salEchoService;
+    private final EchoProber echoProber;
     private final PacketDispatcher packetDispatcher;
     private final InventoryReader inventoryReader;
-    private Map<String, Long> echoDelayMap;
+    private final ProbeScheduler probeScheduler;
+    private final int shard;
+    private final ProbeRateController probeRateController;
+    private final ProbeSequencer probeSequencer;
+    private final ProbeTemplateCache probeTemplateCache = new ProbeTemplateCache();
+    private final Runnable roundContinuation = new RoundContinuation();
+
+    private List<String> roundNodeIds;
+    private List<String> deferredNodeIds = new ArrayList<>();
+    private long deferredWaitNanos;
+    private int deferredPasses;
+    private int roundCursor;
+    private boolean roundInProgress = false;
 
-    public DelaySender(DataBroker dataBroker, DelaydetectConfig delaydetectConfig, PacketProcessingService packetProcessingService, SalEchoService salEchoService, PacketDispatcher packetDispatcher, InventoryReader inventoryReader, Map<String, Long> echoDelayMap) {
-        this.dataBroker = dataBroker;
+    public DelaySender(DelaydetectConfig delaydetectConfig, EchoProber echoProber, PacketDispatcher packetDispatcher, InventoryReader inventoryReader, ProbeScheduler probeScheduler, int shard, ProbeRateController probeRateController, ProbeSequencer probeSequencer) {
         this.delaydetectConfig = delaydetectConfig;
-        this.packetProcessingService = packetProcessingService;
-        this.salEchoService = salEchoService;
+        this.echoProber = echoProber;
         this.packetDispatcher = packetDispatcher;
         this.inventoryReader = inventoryReader;
-        this.echoDelayMap = echoDelayMap;
+        this.probeScheduler = probeScheduler;
+        this.shard = shard;
+        this.probeRateController = probeRateController;
+        this.probeSequencer = probeSequencer;
     }
 
+    /**
+     * Starts a probing round over the switches of this sender's shard. A
+     * round that is still waiting for probe budget is not restarted.
+     */
     @Override
     public void run() {
-        while (delaydetectConfig.isIsActive()) {
-            IPv4 iPv4 = new IPv4();
-            iPv4.setTtl((byte) 1).setProtocol((byte) KnownIpProtocols.Experimentation1.getIntValue());
-            try {
-                //generate a ipv4 packet
-                iPv4.setSourceAddress(InetAddress.getByName("0.0.0.1"))
-                        .setDestinationAddress(InetAddress.getByName("0.0.0.2"));
-
-                //generate a ethernet packet
-                Ethernet ethernet = new Ethernet();
-                EthernetAddress srcMac = new EthernetAddress(new byte[]{(byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0xee});
-                EthernetAddress destMac = new EthernetAddress(new byte[]{(byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0xef});
-                ethernet.setSourceMACAddress(srcMac.getValue())
-                        .setDestinationMACAddress(destMac.getValue())
-                        .setEtherType(EtherTypes.IPv4.shortValue());
-
-                //flood packet
-                packetDispatcher.setInventoryReader(inventoryReader);
-                Map<String, NodeConnectorRef> nodeConnectorMap = inventoryReader.getControllerSwitchConnectors();
-
-                for (String nodeId : nodeConnectorMap.keySet()) {
-                    iPv4.setOptions(mergeOptions(BitBufferHelper.toByteArray(System.nanoTime()), BitBufferHelper.toByteArray(Long.parseLong(nodeId.split(":")[1]))));
-                    ethernet.setPayload(iPv4);
-                    packetDispatcher.floodPacket(nodeId, ethernet.serialize(), nodeConnectorMap.get(nodeId), null);
+        if (!delaydetectConfig.isIsActive()) {
+            return;
+        }
+        synchronized (this) {
+            if (roundInProgress) {
+                return;
+            }
+            roundNodeIds = probeScheduler.getShard(shard);
+            roundCursor = 0;
+            deferredNodeIds.clear();
+            deferredPasses = 0;
+            roundInProgress = true;
+            probeTemplateCache.retainNodes(new HashSet<>(roundNodeIds));
+        }
+        continueRound();
+    }
 
-                    InstanceIdentifier<Node> nodeInstanceId = InstanceIdentifier.builder(Nodes.class)
-                            .child(Node.class, new NodeKey(new NodeId(nodeId))).build();
-                    SendEchoInput sendEchoInput = new SendEchoInputBuilder()
-                            .setData(BitBufferHelper.toByteArray(System.nanoTime()))
-                            .setNode(new NodeRef(nodeInstanceId)).build();
-                    long Time1 = System.nanoTime();
-                    Future<RpcResult<SendEchoOutput>> result = salEchoService.sendEcho(sendEchoInput);
-                    while (!result.isDone()) ;
-                    long Time2 = System.nanoTime();
-                    long echoDelay = (Time2 - Time1);
-                    echoDelayMap.put(nodeId, echoDelay);
-                    // LOG.info("echo " + nodeId + ": " + echoDelay);
+    /**
+     * Probes the remaining switches of the current round. Switches over their
+     * own budget are deferred to the end of the round and retried once the
+     * first of them has budget again, at most {@link #MAX_DEFERRED_PASSES}
+     * times and only within the probing period; after that they sit the
+     * round out, so they cannot hold up the next round. When the global
+     * budget is used up the rest of the round is rescheduled for when it
+     * refills.
+     */
+    private synchronized void continueRound() {
+        Map<String, NodeConnectorRef> nodeConnectorMap = inventoryReader.getControllerSwitchConnectors();
+        while (roundCursor < roundNodeIds.size()) {
+            String nodeId = roundNodeIds.get(roundCursor);
+            NodeConnectorRef controllerNodeConnector = nodeConnectorMap.get(nodeId);
+            if (controllerNodeConnector == null) {
+                roundCursor++;
+                continue;
+            }
+            int probes = packetDispatcher.getFloodPacketCount(nodeId);
+            if (!probeRateController.tryAcquireSwitch(nodeId, probes)) {
+                long waitNanos = probeRateController.getSwitchWaitNanos(nodeId);
+                if (deferredNodeIds.isEmpty() || waitNanos < deferredWaitNanos) {
+                    deferredWaitNanos = waitNanos;
                 }
-            } catch (ConstructionException | UnknownHostException | PacketException e) {
-                e.printStackTrace();
+                deferredNodeIds.add(nodeId);
+                roundCursor++;
+                continue;
             }
+            if (!probeRateController.tryAcquireGlobal(probes)) {
+                probeRateController.releaseSwitch(nodeId, probes);
+                probeScheduler.schedule(roundContinuation, probeRateController.getGlobalWaitNanos());
+                return;
+            }
+            roundCursor++;
+            probe(nodeId, controllerNodeConnector);
+        }
+        if (!deferredNodeIds.isEmpty()) {
+            if (deferredPasses < MAX_DEFERRED_PASSES
+                    && deferredWaitNanos < TimeUnit.MILLISECONDS.toNanos(probeScheduler.getPeriod())) {
+                deferredPasses++;
+                roundNodeIds = deferredNodeIds;
+                deferredNodeIds = new ArrayList<>();
+                roundCursor = 0;
+                probeScheduler.schedule(roundContinuation, deferredWaitNanos);
+                return;
+            }
+            LOG.debug("{} switches of shard {} over their probe budget skip this round", deferredNodeIds.size(), shard);
+            deferredNodeIds.clear();
+        }
+        roundInProgress = false;
+    }
 
-            /*try {
-                Thread.sleep(delaydetectConfig.getQuerryDelay() * 100);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-
-            }*/
+    private void probe(String nodeId, NodeConnectorRef controllerNodeConnector) {
+        try {
+            //flood packet
+            ProbeTemplate template = probeTemplateCache.getTemplate(nodeId);
+            long sendTime = System.nanoTime();
+            byte[] payload = template.stamp(sendTime, probeSequencer.next(nodeId, sendTime));
+            packetDispatcher.floodProbe(nodeId, payload, controllerNodeConnector);
+            echoProber.sendEcho(nodeId, template.getSendEchoInput());
+        } catch (RuntimeException e) {
+            LOG.warn("Failed to probe node {}", nodeId, e);
         }
     }
 
-    private byte[] mergeOptions(byte[] aOption, byte[] bOption) {
-        byte[] option = new byte[]{0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0};
-        for (int i = 0; i < aOption.length; i++) {
-            option[i] = aOption[i];
-            option[i + 8] = bOption[i];
+    private class RoundContinuation implements Runnable {
+
+        @Override
+        public void run() {
+            continueRound();
         }
-        return option;
     }
 }
@@ -8,43 +8,386 @@
 package org.bupt.delaydetect.impl;
 
 import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.delaydetect.rev150105.*;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.delaydetect.rev150105.getdelaydelta.output.UpdatedLink;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.delaydetect.rev150105.getdelaydelta.output.UpdatedLinkBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.delaydetect.rev150105.getdelaydelta.output.UpdatedLinkKey;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.delaydetect.rev150105.getdelayhistory.output.DelayRecord;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.delaydetect.rev150105.getdelayhistory.output.DelayRecordBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.delaydetect.rev150105.getdelaymatrix.output.Row;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.delaydetect.rev150105.getdelaymatrix.output.RowBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.delaydetect.rev150105.getdelaymatrix.output.RowKey;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.delaydetect.rev150105.getdelaymatrix.output.row.TargetDelay;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.delaydetect.rev150105.getdelaymatrix.output.row.TargetDelayBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.delaydetect.rev150105.getdelaymatrix.output.row.TargetDelayKey;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.delaydetect.rev150105.getdelayrollup.output.RollupPoint;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.delaydetect.rev150105.getdelayrollup.output.RollupPointBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.delaydetect.rev150105.getdelays.output.LinkDelay;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.delaydetect.rev150105.getdelays.output.LinkDelayBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.delaydetect.rev150105.getdelays.output.LinkDelayKey;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.delaydetect.rev150105.getglobaldelay.output.DelayList;
-import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.delaydetect.rev150105.getglobaldelay.output.DelayListBuilder;
-import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.delaydetect.rev150105.getglobaldelay.output.DelayListKey;
 import org.opendaylight.yangtools.yang.common.RpcResult;
 import org.opendaylight.yangtools.yang.common.RpcResultBuilder;
 
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Future;
 
 public class DelayServiceImpl implements DelaydetectService {
-    private Map<String, Long> delayMap;
+    private final LinkStore linkStore;
+    private final LinkHistograms linkHistograms;
+    private final LinkRollups linkRollups;
+    private final LinkDelayFilter linkDelayFilter;
+    private final LinkHealth linkHealth;
+    private final ProbeRateController probeRateController;
+    private final DelayAggregator delayAggregator;
+    private final DelayHistory delayHistory;
+    private final DelaySnapshots delaySnapshots;
+    private final PathEngine pathEngine;
+    private final DelayMatrix delayMatrix;
 
-    public DelayServiceImpl(Map<String, Long> delayMap) {
-        this.delayMap = delayMap;
+    public DelayServiceImpl(LinkStore linkStore, LinkHistograms linkHistograms, LinkRollups linkRollups,
+                            LinkDelayFilter linkDelayFilter,
+                            LinkHealth linkHealth, ProbeRateController probeRateController,
+                            DelayAggregator delayAggregator, DelayHistory delayHistory,
+                            DelaySnapshots delaySnapshots, PathEngine pathEngine, DelayMatrix delayMatrix) {
+        this.linkStore = linkStore;
+        this.linkHistograms = linkHistograms;
+        this.linkRollups = linkRollups;
+        this.linkDelayFilter = linkDelayFilter;
+        this.linkHealth = linkHealth;
+        this.probeRateController = probeRateController;
+        this.delayAggregator = delayAggregator;
+        this.delayHistory = delayHistory;
+        this.delaySnapshots = delaySnapshots;
+        this.pathEngine = pathEngine;
+        this.delayMatrix = delayMatrix;
     }
 
     @Override
     public Future<RpcResult<GetDelayOutput>> getDelay(GetDelayInput input){
         String nodeConnector = input.getNodeConnector();
         GetDelayOutputBuilder getDelayOutputBuilder = new GetDelayOutputBuilder();
-        getDelayOutputBuilder.setDelay(delayMap.get(nodeConnector));
+        int link = nodeConnector == null ? -1 : linkStore.indexOf(nodeConnector);
+        long delay = link < 0 ? -1 : linkStore.readDelay(link, new long[1]);
+        if (delay >= 0) {
+            getDelayOutputBuilder.setDelay(delay);
+        }
         return RpcResultBuilder.success(getDelayOutputBuilder.build()).buildFuture();
     }
 
     @Override
-    public Future<RpcResult<GetGlobalDelayOutput>> getGlobalDelay(){
+    public Future<RpcResult<GetDelaysOutput>> getDelays(GetDelaysInput input) {
+        GetDelaysOutputBuilder getDelaysOutputBuilder = new GetDelaysOutputBuilder();
+        List<String> nodeConnectors = input.getNodeConnector();
+        List<LinkDelay> linkDelays = new ArrayList<>();
+        if (nodeConnectors != null) {
+            Set<String> seen = new HashSet<>();
+            long now = System.currentTimeMillis();
+            long[] updateTime = new long[1];
+            for (String nodeConnector : nodeConnectors) {
+                if (nodeConnector == null || !seen.add(nodeConnector)) {
+                    continue;
+                }
+                LinkDelayBuilder linkDelayBuilder = new LinkDelayBuilder();
+                linkDelayBuilder.setKey(new LinkDelayKey(nodeConnector));
+                int link = linkStore.indexOf(nodeConnector);
+                long delay = link < 0 ? -1 : linkStore.readDelay(link, updateTime);
+                if (delay >= 0) {
+                    linkDelayBuilder.setDelay(delay);
+                    linkDelayBuilder.setAge(BigInteger.valueOf(Math.max(0L, now - updateTime[0])));
+                }
+                linkDelays.add(linkDelayBuilder.build());
+            }
+        }
+        getDelaysOutputBuilder.setLinkDelay(linkDelays);
+        return RpcResultBuilder.success(getDelaysOutputBuilder.build()).buildFuture();
+    }
+
+    @Override
+    public Future<RpcResult<GetGlobalDelayOutput>> getGlobalDelay(GetGlobalDelayInput input) {
+        DelaySnapshot snapshot = delaySnapshots.getSnapshot();
+        // callers of the original RPC send no input at all
+        if (input == null || input.getNode() == null && input.getMinDelay() == null && input.getMaxDelay() == null
+                && input.getTop() == null && input.getCursor() == null && input.getPageSize() == null) {
+            return RpcResultBuilder.success(snapshot.getOutput()).buildFuture();
+        }
         GetGlobalDelayOutputBuilder getGlobalDelayOutputBuilder = new GetGlobalDelayOutputBuilder();
+        getGlobalDelayOutputBuilder.setVersion(BigInteger.valueOf(snapshot.getVersion()));
+        getGlobalDelayOutputBuilder.setRoundTimestamp(BigInteger.valueOf(snapshot.getTimestamp()));
+        long minDelay = input.getMinDelay() == null ? 0 : input.getMinDelay();
+        long maxDelay = input.getMaxDelay() == null ? Long.MAX_VALUE : input.getMaxDelay();
+        // candidate positions in the snapshot in ascending link order, null for all links
+        int[] candidates = null;
+        if (input.getNode() != null) {
+            int[] switchLinks = linkStore.getSwitchLinks(input.getNode());
+            candidates = new int[switchLinks.length];
+            int found = 0;
+            for (int link : switchLinks) {
+                int position = snapshot.positionOf(link);
+                if (position >= 0) {
+                    candidates[found++] = position;
+                }
+            }
+            candidates = Arrays.copyOf(candidates, found);
+            Arrays.sort(candidates);
+        }
+        int count = candidates == null ? snapshot.size() : candidates.length;
         List<DelayList> delayLists = new ArrayList<>();
-        for (String ncid : delayMap.keySet()) {
-            DelayListBuilder delayListBuilder = new DelayListBuilder();
-            delayListBuilder.setKey(new DelayListKey(ncid));
-            delayListBuilder.setDelay(delayMap.get(ncid));
-            delayLists.add(delayListBuilder.build());
+        if (input.getTop() != null) {
+            // delay in the high half, position in the low half, so the keys sort by delay
+            long[] keys = new long[count];
+            int matches = 0;
+            for (int i = 0; i < count; i++) {
+                int position = candidates == null ? i : candidates[i];
+                long delay = snapshot.getDelay(position);
+                if (delay >= minDelay && delay <= maxDelay) {
+                    keys[matches++] = delay << 32 | position;
+                }
+            }
+            Arrays.sort(keys, 0, matches);
+            for (int i = matches - 1; i >= 0 && i >= matches - input.getTop(); i--) {
+                delayLists.add(snapshot.getDelayList((int) keys[i]));
+            }
+        } else {
+            long cursor = input.getCursor() == null ? 0 : input.getCursor();
+            long pageSize = input.getPageSize() == null || input.getPageSize() == 0
+                    ? Long.MAX_VALUE : input.getPageSize();
+            for (int i = 0; i < count; i++) {
+                int position = candidates == null ? i : candidates[i];
+                long delay = snapshot.getDelay(position);
+                if (snapshot.getLink(position) < cursor || delay < minDelay || delay > maxDelay) {
+                    continue;
+                }
+                if (delayLists.size() == pageSize) {
+                    getGlobalDelayOutputBuilder.setNextCursor((long) snapshot.getLink(position));
+                    break;
+                }
+                delayLists.add(snapshot.getDelayList(position));
+            }
         }
         getGlobalDelayOutputBuilder.setDelayList(delayLists);
         return RpcResultBuilder.success(getGlobalDelayOutputBuilder.build()).buildFuture();
     }
+
+    @Override
+    public Future<RpcResult<GetDelayDeltaOutput>> getDelayDelta(GetDelayDeltaInput input) {
+        DelaySnapshot snapshot = delaySnapshots.getSnapshot();
+        GetDelayDeltaOutputBuilder getDelayDeltaOutputBuilder = new GetDelayDeltaOutputBuilder();
+        getDelayDeltaOutputBuilder.setVersion(BigInteger.valueOf(snapshot.getVersion()));
+        List<UpdatedLink> updatedLinks = new ArrayList<>();
+        List<String> removedLinks = new ArrayList<>();
+        int[] changedLinks = input.getSinceVersion() == null ? null
+                : delaySnapshots.getChangedLinks(input.getSinceVersion().longValue(), snapshot.getVersion());
+        if (changedLinks == null) {
+            getDelayDeltaOutputBuilder.setResync(true);
+            for (int position = 0; position < snapshot.size(); position++) {
+                updatedLinks.add(buildUpdatedLink(snapshot, position));
+            }
+        } else {
+            getDelayDeltaOutputBuilder.setResync(false);
+            for (int link : changedLinks) {
+                int position = snapshot.positionOf(link);
+                if (position >= 0) {
+                    updatedLinks.add(buildUpdatedLink(snapshot, position));
+                } else {
+                    removedLinks.add(linkStore.getNcId(link));
+                }
+            }
+        }
+        getDelayDeltaOutputBuilder.setUpdatedLink(updatedLinks);
+        getDelayDeltaOutputBuilder.setRemovedLink(removedLinks);
+        return RpcResultBuilder.success(getDelayDeltaOutputBuilder.build()).buildFuture();
+    }
+
+    private UpdatedLink buildUpdatedLink(DelaySnapshot snapshot, int position) {
+        UpdatedLinkBuilder updatedLinkBuilder = new UpdatedLinkBuilder();
+        updatedLinkBuilder.setKey(new UpdatedLinkKey(linkStore.getNcId(snapshot.getLink(position))));
+        updatedLinkBuilder.setDelay(snapshot.getDelay(position));
+        return updatedLinkBuilder.build();
+    }
+
+    @Override
+    public Future<RpcResult<GetProbeStatisticsOutput>> getProbeStatistics() {
+        GetProbeStatisticsOutputBuilder getProbeStatisticsOutputBuilder = new GetProbeStatisticsOutputBuilder();
+        getProbeStatisticsOutputBuilder.setGlobalProbeRate(probeRateController.getGlobalProbeRate());
+        getProbeStatisticsOutputBuilder.setSwitchProbeRate(probeRateController.getSwitchProbeRate());
+        getProbeStatisticsOutputBuilder.setProbeRate(probeRateController.getProbeRate());
+        getProbeStatisticsOutputBuilder.setBudgetUtilization((short) probeRateController.getBudgetUtilization());
+        getProbeStatisticsOutputBuilder.setDeferredProbes(BigInteger.valueOf(probeRateController.getDeferredProbes()));
+        getProbeStatisticsOutputBuilder.setAggregationBacklog((long) delayAggregator.getBacklog());
+        getProbeStatisticsOutputBuilder.setDroppedProbes(BigInteger.valueOf(delayAggregator.getDropped()));
+        return RpcResultBuilder.success(getProbeStatisticsOutputBuilder.build()).buildFuture();
+    }
+
+    @Override
+    public Future<RpcResult<GetDelayPercentilesOutput>> getDelayPercentiles(GetDelayPercentilesInput input) {
+        String nodeConnector = input.getNodeConnector();
+        GetDelayPercentilesOutputBuilder getDelayPercentilesOutputBuilder = new GetDelayPercentilesOutputBuilder();
+        int link = nodeConnector == null ? -1 : linkStore.indexOf(nodeConnector);
+        long[] percentiles = link < 0 ? null : linkHistograms.getPercentiles(link, 50, 90, 99);
+        if (percentiles == null) {
+            getDelayPercentilesOutputBuilder.setSampleCount(0L);
+        } else {
+            getDelayPercentilesOutputBuilder.setSampleCount(percentiles[0]);
+            getDelayPercentilesOutputBuilder.setMin(percentiles[1]);
+            getDelayPercentilesOutputBuilder.setP50(percentiles[2]);
+            getDelayPercentilesOutputBuilder.setP90(percentiles[3]);
+            getDelayPercentilesOutputBuilder.setP99(percentiles[4]);
+            getDelayPercentilesOutputBuilder.setMax(percentiles[5]);
+        }
+        return RpcResultBuilder.success(getDelayPercentilesOutputBuilder.build()).buildFuture();
+    }
+
+    @Override
+    public Future<RpcResult<GetDelayHistoryOutput>> getDelayHistory(GetDelayHistoryInput input) {
+        GetDelayHistoryOutputBuilder getDelayHistoryOutputBuilder = new GetDelayHistoryOutputBuilder();
+        List<DelayRecord> delayRecords = new ArrayList<>();
+        String nodeConnector = input.getNodeConnector();
+        int link = nodeConnector == null ? -1 : linkStore.indexOf(nodeConnector);
+        if (delayHistory != null && link >= 0) {
+            long startTime = input.getStartTime() == null ? 0 : input.getStartTime().longValue();
+            long endTime = input.getEndTime() == null ? System.currentTimeMillis() : input.getEndTime().longValue();
+            int maxRecords = input.getMaxRecords() == null ? 10000 : (int) Math.min(Integer.MAX_VALUE, input.getMaxRecords());
+            for (long[] record : delayHistory.query(link, startTime, endTime, maxRecords)) {
+                DelayRecordBuilder delayRecordBuilder = new DelayRecordBuilder();
+                delayRecordBuilder.setTimestamp(BigInteger.valueOf(record[0]));
+                delayRecordBuilder.setDelay(record[1]);
+                delayRecords.add(delayRecordBuilder.build());
+            }
+        }
+        getDelayHistoryOutputBuilder.setDelayRecord(delayRecords);
+        return RpcResultBuilder.success(getDelayHistoryOutputBuilder.build()).buildFuture();
+    }
+
+    @Override
+    public Future<RpcResult<GetDelayRollupOutput>> getDelayRollup(GetDelayRollupInput input) {
+        GetDelayRollupOutputBuilder getDelayRollupOutputBuilder = new GetDelayRollupOutputBuilder();
+        List<RollupPoint> rollupPoints = new ArrayList<>();
+        String nodeConnector = input.getNodeConnector();
+        int link = nodeConnector == null ? -1 : linkStore.indexOf(nodeConnector);
+        if (link >= 0) {
+            int resolution = LinkRollups.MINUTE;
+            if (input.getResolution() == GetDelayRollupInput.Resolution.Second) {
+                resolution = LinkRollups.SECOND;
+            } else if (input.getResolution() == GetDelayRollupInput.Resolution.Hour) {
+                resolution = LinkRollups.HOUR;
+            }
+            for (long[] point : linkRollups.getSeries(link, resolution)) {
+                RollupPointBuilder rollupPointBuilder = new RollupPointBuilder();
+                rollupPointBuilder.setTimestamp(BigInteger.valueOf(point[0]));
+                rollupPointBuilder.setMin(point[1]);
+                rollupPointBuilder.setAvg(point[2]);
+                rollupPointBuilder.setMax(point[3]);
+                rollupPointBuilder.setP50(point[4]);
+                rollupPointBuilder.setP99(point[5]);
+                rollupPointBuilder.setSampleCount(point[6]);
+                rollupPoints.add(rollupPointBuilder.build());
+            }
+        }
+        getDelayRollupOutputBuilder.setRollupPoint(rollupPoints);
+        return RpcResultBuilder.success(getDelayRollupOutputBuilder.build()).buildFuture();
+    }
+
+    @Override
+    public Future<RpcResult<GetLinkStatisticsOutput>> getLinkStatistics(GetLinkStatisticsInput input) {
+        String nodeConnector = input.getNodeConnector();
+        GetLinkStatisticsOutputBuilder getLinkStatisticsOutputBuilder = new GetLinkStatisticsOutputBuilder();
+        int link = nodeConnector == null ? -1 : linkStore.indexOf(nodeConnector);
+        long[] counters = link < 0 ? new long[3] : linkDelayFilter.getCounters(link);
+        getLinkStatisticsOutputBuilder.setAcceptedSamples(BigInteger.valueOf(counters[0]));
+        getLinkStatisticsOutputBuilder.setFilteredSamples(BigInteger.valueOf(counters[1]));
+        getLinkStatisticsOutputBuilder.setOutOfRangeSamples(BigInteger.valueOf(counters[2]));
+        long[] health = link < 0 ? null : linkHealth.getCounters(link);
+        if (health != null) {
+            long received = health[0];
+            long lost = health[1];
+            getLinkStatisticsOutputBuilder.setReceivedProbes(BigInteger.valueOf(received));
+            getLinkStatisticsOutputBuilder.setLostProbes(BigInteger.valueOf(lost));
+            getLinkStatisticsOutputBuilder.setReorderedProbes(BigInteger.valueOf(health[2]));
+            getLinkStatisticsOutputBuilder.setLossRate(received + lost == 0 ? BigDecimal.ZERO
+                    : BigDecimal.valueOf(lost * 100).divide(BigDecimal.valueOf(received + lost), 2, RoundingMode.HALF_UP));
+            getLinkStatisticsOutputBuilder.setLastSeenAge(BigInteger.valueOf(Math.max(0L, System.currentTimeMillis() - health[3])));
+        }
+        return RpcResultBuilder.success(getLinkStatisticsOutputBuilder.build()).buildFuture();
+    }
+
+    @Override
+    public Future<RpcResult<GetPathDelayOutput>> getPathDelay(GetPathDelayInput input) {
+        GetPathDelayOutputBuilder getPathDelayOutputBuilder = new GetPathDelayOutputBuilder();
+        List<String> nodeIds = input.getNode();
+        PathEngine.Path path = nodeIds == null ? null : pathEngine.getPathDelay(nodeIds);
+        if (path != null) {
+            getPathDelayOutputBuilder.setDelay(BigInteger.valueOf(path.getDelay()));
+            getPathDelayOutputBuilder.setLink(getNcIds(path));
+        }
+        return RpcResultBuilder.success(getPathDelayOutputBuilder.build()).buildFuture();
+    }
+
+    @Override
+    public Future<RpcResult<GetShortestPathOutput>> getShortestPath(GetShortestPathInput input) {
+        GetShortestPathOutputBuilder getShortestPathOutputBuilder = new GetShortestPathOutputBuilder();
+        PathEngine.Path path = input.getSource() == null || input.getDestination() == null ? null
+                : pathEngine.getShortestPath(input.getSource(), input.getDestination());
+        if (path != null) {
+            List<String> nodeIds = new ArrayList<>(path.getLinks().length + 1);
+            nodeIds.add(input.getSource());
+            for (int link : path.getLinks()) {
+                nodeIds.add(linkStore.getSwitchId(linkStore.getDstSwitch(link)));
+            }
+            getShortestPathOutputBuilder.setDelay(BigInteger.valueOf(path.getDelay()));
+            getShortestPathOutputBuilder.setNode(nodeIds);
+            getShortestPathOutputBuilder.setLink(getNcIds(path));
+        }
+        return RpcResultBuilder.success(getShortestPathOutputBuilder.build()).buildFuture();
+    }
+
+    @Override
+    public Future<RpcResult<GetDelayMatrixOutput>> getDelayMatrix() {
+        GetDelayMatrixOutputBuilder getDelayMatrixOutputBuilder = new GetDelayMatrixOutputBuilder();
+        long[][] rows = delayMatrix == null ? new long[0][] : delayMatrix.getRows();
+        List<String> nodeIds = new ArrayList<>(rows.length);
+        for (int source = 0; source < rows.length; source++) {
+            nodeIds.add(linkStore.getSwitchId(source));
+        }
+        List<Row> matrixRows = new ArrayList<>(rows.length);
+        for (int source = 0; source < rows.length; source++) {
+            List<TargetDelay> targetDelays = new ArrayList<>(rows.length);
+            for (int target = 0; target < rows.length; target++) {
+                targetDelays.add(new TargetDelayBuilder()
+                        .setKey(new TargetDelayKey(nodeIds.get(target)))
+                        .setDelay(rows[source][target])
+                        .build());
+            }
+            RowBuilder rowBuilder = new RowBuilder();
+            rowBuilder.setKey(new RowKey(nodeIds.get(source)));
+            rowBuilder.setTargetDelay(targetDelays);
+            matrixRows.add(rowBuilder.build());
+        }
+        getDelayMatrixOutputBuilder.setNode(nodeIds);
+        getDelayMatrixOutputBuilder.setRow(matrixRows);
+        return RpcResultBuilder.success(getDelayMatrixOutputBuilder.build()).buildFuture();
+    }
+
+    @Override
+    public Future<RpcResult<GetDelayMatrixDumpOutput>> getDelayMatrixDump() {
+        GetDelayMatrixDumpOutputBuilder getDelayMatrixDumpOutputBuilder = new GetDelayMatrixDumpOutputBuilder();
+        if (delayMatrix != null) {
+            getDelayMatrixDumpOutputBuilder.setDump(delayMatrix.dump());
+        }
+        return RpcResultBuilder.success(getDelayMatrixDumpOutputBuilder.build()).buildFuture();
+    }
+
+    private List<String> getNcIds(PathEngine.Path path) {
+        List<String> ncIds = new ArrayList<>(path.getLinks().length);
+        for (int link : path.getLinks()) {
+            ncIds.add(linkStore.getNcId(link));
+        }
+        return ncIds;
+    }
 }
@@ -0,0 +1,103 @@
+/*
+ * Copyright © 2017 bupt.dtj and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.bupt.delaydetect.impl;
+
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.delaydetect.rev150105.GetGlobalDelayOutput;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.delaydetect.rev150105.GetGlobalDelayOutputBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.delaydetect.rev150105.getglobaldelay.output.DelayList;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * DelaySnapshot is an immutable view of the published link delays at the end
+ * of a measurement round. The links with a delay are kept in ascending link
+ * index order, each with its delay, its source switch and its prebuilt
+ * DelayList entry, and the unfiltered getGlobalDelay output is built once
+ * with the snapshot.
+ */
+public class DelaySnapshot {
+
+    private final long version;
+    private final long timestamp;
+    private final int[] links;
+    private final long[] delays;
+    private final int[] srcSwitches;
+    private final List<DelayList> delayLists;
+    private final GetGlobalDelayOutput output;
+
+    DelaySnapshot(long version, long timestamp, int[] links, long[] delays, int[] srcSwitches,
+                  List<DelayList> delayLists) {
+        this.version = version;
+        this.timestamp = timestamp;
+        this.links = links;
+        this.delays = delays;
+        this.srcSwitches = srcSwitches;
+        this.delayLists = Collections.unmodifiableList(delayLists);
+        this.output = new GetGlobalDelayOutputBuilder()
+                .setVersion(BigInteger.valueOf(version))
+                .setRoundTimestamp(BigInteger.valueOf(timestamp))
+                .setDelayList(this.delayLists)
+                .build();
+    }
+
+    /**
+     * @return a snapshot without links
+     */
+    static DelaySnapshot empty(long version) {
+        return new DelaySnapshot(version, 0, new int[0], new long[0], new int[0], Collections.<DelayList>emptyList());
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return the wall clock time of the end of the round in milliseconds
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public int size() {
+        return links.length;
+    }
+
+    public int getLink(int position) {
+        return links[position];
+    }
+
+    public long getDelay(int position) {
+        return delays[position];
+    }
+
+    public int getSrcSwitch(int position) {
+        return srcSwitches[position];
+    }
+
+    public DelayList getDelayList(int position) {
+        return delayLists.get(position);
+    }
+
+    /**
+     * @return the position of a link, negative if it has no delay in the
+     *         snapshot
+     */
+    public int positionOf(int link) {
+        return Arrays.binarySearch(links, link);
+    }
+
+    /**
+     * @return the getGlobalDelay output of all links
+     */
+    public GetGlobalDelayOutput getOutput() {
+        return output;
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright © 2017 bupt.dtj and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.bupt.delaydetect.impl;
+
+import org.opendaylight.yang.gen.v1.urn.opendaylight.packet.delaydetect.config.rev181107.DelaydetectConfig;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.delaydetect.rev150105.getglobaldelay.output.DelayList;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.delaydetect.rev150105.getglobaldelay.output.DelayListBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.delaydetect.rev150105.getglobaldelay.output.DelayListKey;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * DelaySnapshots publishes a new DelaySnapshot of the LinkStore at the end
+ * of every measurement round, that is once per probing period. The version
+ * only advances when a link delay was published or withdrawn, or the source
+ * of a link moved, during the round; DelayList entries of unchanged links
+ * are carried over from the previous snapshot. A bounded change log keeps
+ * the links changed by each of the last versions, so a consumer can catch
+ * up from the version it has seen at the cost of the changes rather than of
+ * all links.
+ *
+ * <p>Versions start from the start time of the controller shifted left by
+ * 20 bits rather than from 0, so a version a consumer kept from an earlier
+ * run is not in the change log of a later one and forces a resync.
+ */
+public class DelaySnapshots implements Runnable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DelaySnapshots.class);
+    // a run would have to publish 2^20 versions per millisecond to reach the versions of a later run
+    private static final int START_VERSION_SHIFT = 20;
+
+    private final LinkStore linkStore;
+    private volatile DelaySnapshot snapshot;
+    // the links published, withdrawn or moved by a version, slot = version % size
+    private final long[] logVersions;
+    private final int[][] logLinks;
+
+    public DelaySnapshots(DelaydetectConfig delaydetectConfig, LinkStore linkStore) {
+        this.linkStore = linkStore;
+        this.snapshot = DelaySnapshot.empty(System.currentTimeMillis() << START_VERSION_SHIFT);
+        int changeLogSize = Math.max(1, delaydetectConfig.getChangeLogSize());
+        this.logVersions = new long[changeLogSize];
+        this.logLinks = new int[changeLogSize][];
+    }
+
+    /**
+     * @return the snapshot of the last round
+     */
+    public DelaySnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Collects the links whose delay was published or withdrawn after a
+     * version, up to and including another.
+     *
+     * @param sinceVersion
+     *            The version the consumer has seen.
+     * @param version
+     *            The version to catch up to.
+     * @return the link indexes in ascending order, null if the change log no
+     *         longer reaches back to sinceVersion
+     */
+    public synchronized int[] getChangedLinks(long sinceVersion, long version) {
+        if (sinceVersion > version || version - sinceVersion > logVersions.length) {
+            return null;
+        }
+        int total = 0;
+        for (long v = sinceVersion + 1; v <= version; v++) {
+            int slot = (int) (v % logVersions.length);
+            if (logVersions[slot] != v) {
+                return null;
+            }
+            total += logLinks[slot].length;
+        }
+        int[] links = new int[total];
+        int count = 0;
+        for (long v = sinceVersion + 1; v <= version; v++) {
+            int[] changed = logLinks[(int) (v % logVersions.length)];
+            System.arraycopy(changed, 0, links, count, changed.length);
+            count += changed.length;
+        }
+        Arrays.sort(links);
+        int distinct = 0;
+        for (int i = 0; i < count; i++) {
+            if (distinct == 0 || links[distinct - 1] != links[i]) {
+                links[distinct++] = links[i];
+            }
+        }
+        return Arrays.copyOf(links, distinct);
+    }
+
+    @Override
+    public void run() {
+        try {
+            publish();
+        } catch (RuntimeException e) {
+            LOG.warn("Failed to publish delay snapshot", e);
+        }
+    }
+
+    private void publish() {
+        DelaySnapshot previous = snapshot;
+        int size = linkStore.size();
+        int[] links = new int[size];
+        long[] delays = new long[size];
+        int[] srcSwitches = new int[size];
+        List<DelayList> delayLists = new ArrayList<>(size);
+        int[] changedLinks = new int[size];
+        int changed = 0;
+        int count = 0;
+        // both snapshots are in ascending link order, so they are merged in one pass
+        int previousPosition = 0;
+        long[] updateTime = new long[1];
+        for (int link = 0; link < size; link++) {
+            boolean hadDelay = previousPosition < previous.size() && previous.getLink(previousPosition) == link;
+            int srcSwitch = linkStore.getSrcSwitch(link);
+            long delay = linkStore.readDelay(link, updateTime);
+            if (delay < 0 || srcSwitch < 0) {
+                if (hadDelay) {
+                    changedLinks[changed++] = link;
+                }
+            } else {
+                links[count] = link;
+                delays[count] = delay;
+                srcSwitches[count] = srcSwitch;
+                if (hadDelay && previous.getDelay(previousPosition) == delay) {
+                    delayLists.add(previous.getDelayList(previousPosition));
+                    if (previous.getSrcSwitch(previousPosition) != srcSwitch) {
+                        changedLinks[changed++] = link;
+                    }
+                } else {
+                    delayLists.add(new DelayListBuilder()
+                            .setKey(new DelayListKey(linkStore.getNcId(link)))
+                            .setDelay(delay)
+                            .build());
+                    changedLinks[changed++] = link;
+                }
+                count++;
+            }
+            if (hadDelay) {
+                previousPosition++;
+            }
+        }
+        if (changed == 0) {
+            return;
+        }
+        long version = previous.getVersion() + 1;
+        DelaySnapshot next = new DelaySnapshot(version, System.currentTimeMillis(),
+                Arrays.copyOf(links, count), Arrays.copyOf(delays, count), Arrays.copyOf(srcSwitches, count),
+                delayLists);
+        synchronized (this) {
+            int slot = (int) (version % logVersions.length);
+            logVersions[slot] = version;
+            logLinks[slot] = Arrays.copyOf(changedLinks, changed);
+            snapshot = next;
+        }
+    }
+}
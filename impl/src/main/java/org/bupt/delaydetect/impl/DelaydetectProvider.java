@@ -16,6 +16,7 @@ import org.opendaylight.controller.sal.binding.api.NotificationProviderService;
 import org.opendaylight.controller.sal.binding.api.RpcProviderRegistry;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.echo.service.rev150305.SalEchoService;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.service.rev130819.SalFlowService;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.group.service.rev130918.SalGroupService;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.packet.delaydetect.config.rev181107.DelaydetectConfig;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.packet.service.rev130709.PacketProcessingService;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.delaydetect.rev150105.DelaydetectService;
@@ -23,8 +24,7 @@ import org.opendaylight.yangtools.concepts.Registration;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.io.IOException;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
@@ -39,15 +39,25 @@ public class DelaydetectProvider {
     private final RpcProviderRegistry rpcProviderRegistry;
     private final SalFlowService salFlowService;
     private final SalEchoService salEchoService;
+    private final SalGroupService salGroupService;
     private BindingAwareBroker.RpcRegistration<DelaydetectService> rpcRegistration;
 
-    private Map<String, Long> delayMap = new ConcurrentHashMap<>();
-    private Map<String, Long> echoDelayMap = new ConcurrentHashMap<>();
+    private LinkStore linkStore = new LinkStore();
+    private LinkHistograms linkHistograms;
+    private LinkRollups linkRollups;
+    private LinkDelayFilter linkDelayFilter;
+    private LinkHealth linkHealth;
+    private DelayAggregator delayAggregator;
+    private DelayHistory delayHistory;
+    private EchoDelayEstimator echoDelayEstimator;
+    private EchoProber echoProber;
+    private ProbeScheduler probeScheduler;
+    private LinkProber linkProber;
     private Registration delayRegistration = null, topoNodeListenerReg = null;
     private static final int CPUS = Runtime.getRuntime().availableProcessors();
     private final ScheduledExecutorService service = Executors.newScheduledThreadPool(CPUS);
 
-    public DelaydetectProvider(final DataBroker dataBroker, DelaydetectConfig config, NotificationProviderService notificationProviderService, PacketProcessingService packetProcessingService, RpcProviderRegistry rpcProviderRegistry, SalFlowService salFlowService, SalEchoService salEchoService) {
+    public DelaydetectProvider(final DataBroker dataBroker, DelaydetectConfig config, NotificationProviderService notificationProviderService, PacketProcessingService packetProcessingService, RpcProviderRegistry rpcProviderRegistry, SalFlowService salFlowService, SalEchoService salEchoService, SalGroupService salGroupService) {
         this.dataBroker = dataBroker;
         this.delaydetectConfig = config;
         this.notificationProviderService = notificationProviderService;
@@ -55,6 +65,7 @@ public class DelaydetectProvider {
         this.rpcProviderRegistry = rpcProviderRegistry;
         this.salFlowService = salFlowService;
         this.salEchoService = salEchoService;
+        this.salGroupService = salGroupService;
     }
 
     /**
@@ -69,12 +80,80 @@ public class DelaydetectProvider {
         inventoryReader.setRefreshData(true);
         inventoryReader.readInventory();
         packetDispatcher.setInventoryReader(inventoryReader);
+        if (delaydetectConfig.isGroupFlood()) {
+            flowWriter.setSalGroupService(salGroupService);
+            packetDispatcher.setProbeGroupWriter(flowWriter);
+        }
 
-        DelaySender delaySender = new DelaySender(dataBroker, delaydetectConfig, packetProcessingService, salEchoService, packetDispatcher, inventoryReader, echoDelayMap);
-        service.scheduleAtFixedRate(delaySender, delaydetectConfig.getQuerryDelay() * 100, delaydetectConfig.getQuerryDelay() * 100, TimeUnit.MILLISECONDS);
-        DelayListener delayListener = new DelayListener(delaydetectConfig, delayMap, echoDelayMap);
+        echoDelayEstimator = new EchoDelayEstimator(delaydetectConfig);
+        echoProber = new EchoProber(delaydetectConfig, salEchoService, echoDelayEstimator);
+        final ProbeRateController probeRateController = new ProbeRateController(delaydetectConfig);
+        final ProbeSequencer probeSequencer = new ProbeSequencer();
+        linkHealth = new LinkHealth(delaydetectConfig, linkStore, probeSequencer);
+        probeScheduler = new ProbeScheduler(delaydetectConfig, inventoryReader, service, CPUS);
+        probeScheduler.addSwitchRemovalListener(new ProbeScheduler.SwitchRemovalListener() {
+            @Override
+            public void onSwitchRemoved(String nodeId) {
+                echoProber.remove(nodeId);
+                echoDelayEstimator.remove(nodeId);
+                probeSequencer.remove(nodeId);
+                linkHealth.onSwitchRemoved(nodeId);
+                probeRateController.remove(nodeId);
+            }
+        });
+        for (int shard = 0; shard < probeScheduler.getShardCount(); shard++) {
+            probeScheduler.addShard(new DelaySender(delaydetectConfig, echoProber, packetDispatcher, inventoryReader, probeScheduler, shard, probeRateController, probeSequencer));
+        }
+        probeScheduler.start();
+        linkProber = new LinkProber(packetDispatcher, inventoryReader, probeRateController);
+        linkHistograms = new LinkHistograms(delaydetectConfig);
+        linkRollups = new LinkRollups(delaydetectConfig);
+        linkDelayFilter = new LinkDelayFilter(delaydetectConfig);
+        service.scheduleAtFixedRate(linkHealth, 1, 1, TimeUnit.SECONDS);
+        if (delaydetectConfig.isHistory()) {
+            delayHistory = new DelayHistory(delaydetectConfig, linkStore);
+            try {
+                delayHistory.start();
+            } catch (IOException e) {
+                LOG.warn("Delay history disabled", e);
+                delayHistory.close();
+                delayHistory = null;
+            }
+        }
+        delayAggregator = new DelayAggregator(delaydetectConfig, linkStore, linkHistograms, linkRollups, linkDelayFilter, linkHealth, echoDelayEstimator);
+        delayAggregator.setDelayHistory(delayHistory);
+        if (delaydetectConfig.isNotifyDelayChanges()) {
+            DelayChangeNotifier delayChangeNotifier = new DelayChangeNotifier(delaydetectConfig, notificationProviderService, linkStore);
+            long batchInterval = DelayChangeNotifier.getBatchInterval(delaydetectConfig);
+            service.scheduleAtFixedRate(delayChangeNotifier, batchInterval, batchInterval, TimeUnit.MILLISECONDS);
+            delayAggregator.setDelayChangeNotifier(delayChangeNotifier);
+            linkHealth.setDelayChangeNotifier(delayChangeNotifier);
+        }
+        echoDelayEstimator.setDelayAggregator(delayAggregator);
+        DelayListener delayListener = new DelayListener(delaydetectConfig, linkStore, delayAggregator);
+        if (delaydetectConfig.isAdaptiveProbing()) {
+            final AdaptiveProbeScheduler adaptiveProbeScheduler = new AdaptiveProbeScheduler(delaydetectConfig, linkProber);
+            service.scheduleAtFixedRate(adaptiveProbeScheduler, adaptiveProbeScheduler.getTickInterval(),
+                    adaptiveProbeScheduler.getTickInterval(), TimeUnit.MILLISECONDS);
+            probeScheduler.addSwitchRemovalListener(new ProbeScheduler.SwitchRemovalListener() {
+                @Override
+                public void onSwitchRemoved(String nodeId) {
+                    adaptiveProbeScheduler.remove(nodeId);
+                }
+            });
+            delayAggregator.setAdaptiveProbeScheduler(adaptiveProbeScheduler);
+        }
         delayRegistration = notificationProviderService.registerNotificationListener(delayListener);
-        DelayServiceImpl delayService = new DelayServiceImpl(delayMap);
+        DelaySnapshots delaySnapshots = new DelaySnapshots(delaydetectConfig, linkStore);
+        service.scheduleAtFixedRate(delaySnapshots, probeScheduler.getPeriod(), probeScheduler.getPeriod(), TimeUnit.MILLISECONDS);
+        PathEngine pathEngine = new PathEngine(delaydetectConfig, linkStore, delaySnapshots);
+        service.scheduleAtFixedRate(pathEngine, probeScheduler.getPeriod(), probeScheduler.getPeriod(), TimeUnit.MILLISECONDS);
+        DelayMatrix delayMatrix = null;
+        if (delaydetectConfig.isDelayMatrix()) {
+            delayMatrix = new DelayMatrix(linkStore, delaySnapshots);
+            service.scheduleAtFixedRate(delayMatrix, probeScheduler.getPeriod(), probeScheduler.getPeriod(), TimeUnit.MILLISECONDS);
+        }
+        DelayServiceImpl delayService = new DelayServiceImpl(linkStore, linkHistograms, linkRollups, linkDelayFilter, linkHealth, probeRateController, delayAggregator, delayHistory, delaySnapshots, pathEngine, delayMatrix);
         rpcRegistration = rpcProviderRegistry.addRpcImplementation(DelaydetectService.class, delayService);
         LOG.info("DelaydetectProvider Session Initiated");
     }
@@ -90,6 +169,19 @@ public class DelaydetectProvider {
             if (topoNodeListenerReg != null) {
                 topoNodeListenerReg.close();
             }
+            if (probeScheduler != null) {
+                probeScheduler.close();
+            }
+            service.shutdown();
+            if (echoProber != null) {
+                echoProber.close();
+            }
+            if (delayAggregator != null) {
+                delayAggregator.close();
+            }
+            if (delayHistory != null) {
+                delayHistory.close();
+            }
         } catch (Exception e) {
             e.printStackTrace();
         }
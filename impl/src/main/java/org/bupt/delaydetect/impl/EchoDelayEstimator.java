@@ -0,0 +1,134 @@
+/*
+ * Copyright © 2017 bupt.dtj and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.bupt.delaydetect.impl;
+
+import org.opendaylight.yang.gen.v1.urn.opendaylight.packet.delaydetect.config.rev181107.DelaydetectConfig;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * EchoDelayEstimator turns the raw echo RTTs of each switch into a robust
+ * controller-to-switch correction. Every switch keeps a sliding window of
+ * its last echo RTTs and publishes the minimum of the window, so a single
+ * slow echo or GC pause does not skew the links of the switch. Samples far
+ * above the current estimate are rejected as outliers. Outliers that
+ * persist for half a window are taken as a real level shift: the window is
+ * refilled at the lowest of them, so the estimate follows at once instead
+ * of being held down by the old samples. A changed
+ * estimate is pushed to the DelayAggregator so it can refresh the links of
+ * the switch.
+ */
+public class EchoDelayEstimator {
+
+    private static final long OUTLIER_FACTOR = 4;
+
+    private final int windowSize;
+    // Key: SwitchId, Value: echo RTT window of this switch
+    private final Map<String, EchoWindow> echoWindows = new ConcurrentHashMap<>();
+    private volatile DelayAggregator delayAggregator;
+
+    public EchoDelayEstimator(DelaydetectConfig delaydetectConfig) {
+        this.windowSize = Math.max(1, delaydetectConfig.getEchoWindow());
+    }
+
+    public void setDelayAggregator(DelayAggregator delayAggregator) {
+        this.delayAggregator = delayAggregator;
+    }
+
+    /**
+     * Records an echo RTT of a switch.
+     *
+     * @param nodeId
+     *            The switch id.
+     * @param echoDelay
+     *            The RTT in nanoseconds.
+     */
+    public void record(String nodeId, long echoDelay) {
+        EchoWindow echoWindow = echoWindows.get(nodeId);
+        if (echoWindow == null) {
+            echoWindow = new EchoWindow(windowSize);
+            EchoWindow existing = echoWindows.putIfAbsent(nodeId, echoWindow);
+            if (existing != null) {
+                echoWindow = existing;
+            }
+        }
+        if (echoWindow.record(echoDelay)) {
+            DelayAggregator aggregator = delayAggregator;
+            if (aggregator != null) {
+                aggregator.onEchoEstimateChanged(nodeId);
+            }
+        }
+    }
+
+    /**
+     * Returns the current RTT estimate of a switch without locking.
+     *
+     * @param nodeId
+     *            The switch id.
+     * @return the estimated RTT in nanoseconds, 0 if the switch has no echo yet
+     */
+    public long getEstimate(String nodeId) {
+        EchoWindow echoWindow = echoWindows.get(nodeId);
+        return echoWindow == null ? 0L : echoWindow.estimate;
+    }
+
+    public boolean isEmpty() {
+        return echoWindows.isEmpty();
+    }
+
+    public void remove(String nodeId) {
+        echoWindows.remove(nodeId);
+    }
+
+    private static class EchoWindow {
+        private final long[] samples;
+        private int next;
+        private int count;
+        private int outliers;
+        private long outlierMin;
+        private volatile long estimate;
+
+        EchoWindow(int windowSize) {
+            this.samples = new long[windowSize];
+        }
+
+        /**
+         * @return true if the estimate has changed
+         */
+        synchronized boolean record(long echoDelay) {
+            if (count == samples.length && estimate > 0 && echoDelay > OUTLIER_FACTOR * estimate) {
+                outlierMin = outliers == 0 ? echoDelay : Math.min(outlierMin, echoDelay);
+                if (++outliers < (samples.length + 1) / 2) {
+                    return false;
+                }
+                // a level shift, the old samples would keep the minimum down for a whole window
+                outliers = 0;
+                Arrays.fill(samples, outlierMin);
+                estimate = outlierMin;
+                return true;
+            }
+            outliers = 0;
+            samples[next] = echoDelay;
+            next = (next + 1) % samples.length;
+            if (count < samples.length) {
+                count++;
+            }
+            long min = Long.MAX_VALUE;
+            for (int i = 0; i < count; i++) {
+                min = Math.min(min, samples[i]);
+            }
+            if (min == estimate) {
+                return false;
+            }
+            estimate = min;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright © 2017 bupt.dtj and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.bupt.delaydetect.impl;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.echo.service.rev150305.SalEchoService;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.echo.service.rev150305.SendEchoInput;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.echo.service.rev150305.SendEchoOutput;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.packet.delaydetect.config.rev181107.DelaydetectConfig;
+import org.opendaylight.yangtools.yang.common.RpcResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * EchoProber measures the controller-to-switch round trip time with OpenFlow
+ * echo requests. Echoes are sent without waiting for the reply; the RTT is
+ * recorded by the completion callback of the echo RPC into the
+ * EchoDelayEstimator. An echo whose RPC future cannot take a callback
+ * yields no RTT and is completed by its timeout.
+ */
+public class EchoProber {
+
+    private static final Logger LOG = LoggerFactory.getLogger(EchoProber.class);
+    private final DelaydetectConfig delaydetectConfig;
+    private final SalEchoService salEchoService;
+    private final EchoDelayEstimator echoDelayEstimator;
+    // Key: SwitchId, Value: the echo currently in flight for this switch
+    private final Map<String, PendingEcho> pendingEchoes = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService echoTimeoutProcessor = Executors.newScheduledThreadPool(1);
+
+    public EchoProber(DelaydetectConfig delaydetectConfig, SalEchoService salEchoService, EchoDelayEstimator echoDelayEstimator) {
+        this.delaydetectConfig = delaydetectConfig;
+        this.salEchoService = salEchoService;
+        this.echoDelayEstimator = echoDelayEstimator;
+    }
+
+    /**
+     * Sends an echo to the specified switch and returns immediately. Nothing
+     * is sent while a previous echo to the same switch is still in flight.
+     *
+     * @param nodeId
+     *            The switch id.
+     * @param sendEchoInput
+     *            The echo request of this switch.
+     */
+    public void sendEcho(String nodeId, SendEchoInput sendEchoInput) {
+        final PendingEcho pendingEcho = new PendingEcho(nodeId);
+        if (pendingEchoes.putIfAbsent(nodeId, pendingEcho) != null) {
+            return;
+        }
+        pendingEcho.sendTime = System.nanoTime();
+        Future<RpcResult<SendEchoOutput>> result;
+        try {
+            result = salEchoService.sendEcho(sendEchoInput);
+        } catch (RuntimeException e) {
+            // nothing is in flight, so the switch must not stay blocked for further echoes
+            pendingEchoes.remove(nodeId, pendingEcho);
+            LOG.warn("Failed to send echo to node {}", nodeId, e);
+            return;
+        }
+        pendingEcho.result = result;
+        pendingEcho.timeout = echoTimeoutProcessor.schedule(new EchoTimeout(pendingEcho),
+                delaydetectConfig.getEchoTimeout(), TimeUnit.MILLISECONDS);
+        if (result instanceof ListenableFuture) {
+            Futures.addCallback((ListenableFuture<RpcResult<SendEchoOutput>>) result, new EchoCallback(pendingEcho),
+                    MoreExecutors.directExecutor());
+        } else {
+            // waiting on a plain Future would hold a thread per echo
+            LOG.debug("Echo to node {} cannot be timed, completing on timeout", nodeId);
+        }
+    }
+
+    /**
+     * Forgets the echo in flight to a switch that left the inventory.
+     */
+    public void remove(String nodeId) {
+        PendingEcho pendingEcho = pendingEchoes.remove(nodeId);
+        if (pendingEcho != null && pendingEcho.timeout != null) {
+            pendingEcho.timeout.cancel(false);
+        }
+    }
+
+    public void close() {
+        echoTimeoutProcessor.shutdownNow();
+        pendingEchoes.clear();
+    }
+
+    private static class PendingEcho {
+        private final String nodeId;
+        private volatile long sendTime;
+        private volatile Future<RpcResult<SendEchoOutput>> result;
+        private volatile ScheduledFuture<?> timeout;
+
+        PendingEcho(String nodeId) {
+            this.nodeId = nodeId;
+        }
+    }
+
+    private class EchoCallback implements FutureCallback<RpcResult<SendEchoOutput>> {
+        private final PendingEcho pendingEcho;
+
+        EchoCallback(PendingEcho pendingEcho) {
+            this.pendingEcho = pendingEcho;
+        }
+
+        @Override
+        public void onSuccess(RpcResult<SendEchoOutput> rpcResult) {
+            long echoDelay = System.nanoTime() - pendingEcho.sendTime;
+            if (!complete(pendingEcho)) {
+                return;
+            }
+            if (rpcResult != null && rpcResult.isSuccessful()) {
+                echoDelayEstimator.record(pendingEcho.nodeId, echoDelay);
+            } else {
+                LOG.debug("Echo to node {} failed: {}", pendingEcho.nodeId,
+                        rpcResult == null ? null : rpcResult.getErrors());
+            }
+        }
+
+        @Override
+        public void onFailure(Throwable throwable) {
+            if (complete(pendingEcho)) {
+                LOG.debug("Echo to node {} failed", pendingEcho.nodeId, throwable);
+            }
+        }
+
+        private boolean complete(PendingEcho pendingEcho) {
+            if (!pendingEchoes.remove(pendingEcho.nodeId, pendingEcho)) {
+                return false;
+            }
+            ScheduledFuture<?> timeout = pendingEcho.timeout;
+            if (timeout != null) {
+                timeout.cancel(false);
+            }
+            return true;
+        }
+    }
+
+    private class EchoTimeout implements Runnable {
+        private final PendingEcho pendingEcho;
+
+        EchoTimeout(PendingEcho pendingEcho) {
+            this.pendingEcho = pendingEcho;
+        }
+
+        @Override
+        public void run() {
+            if (pendingEchoes.remove(pendingEcho.nodeId, pendingEcho)) {
+                pendingEcho.result.cancel(false);
+                LOG.debug("Echo to node {} timed out", pendingEcho.nodeId);
+            }
+        }
+    }
+}
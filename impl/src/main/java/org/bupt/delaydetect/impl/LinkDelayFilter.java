@@ -0,0 +1,180 @@
+/*
+ * Copyright © 2017 bupt.dtj and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.bupt.delaydetect.impl;
+
+import org.opendaylight.yang.gen.v1.urn.opendaylight.packet.delaydetect.config.rev181107.DelaydetectConfig;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * LinkDelayFilter sits between the raw loop delay of a probe and the value
+ * the LinkStore publishes. Every link keeps a window of its last raw loop
+ * delays; depending on the configured filter the published value is the
+ * sample itself, the median or the minimum of the window, or the sample
+ * unless it deviates from the window median by more than a multiple of the
+ * median absolute deviation. The window has a fixed size, so a sample costs
+ * the same no matter how many links there are. Every link also counts its
+ * accepted and rejected samples.
+ */
+public class LinkDelayFilter {
+
+    // scales the MAD to the standard deviation of normally distributed samples
+    private static final double MAD_SCALE = 1.4826;
+    private static final int CHUNK_BITS = 12;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+    private static final int MAX_CHUNKS = 1 << 16;
+
+    private final DelaydetectConfig.DelayFilter delayFilter;
+    private final int windowSize;
+    private final double madThreshold;
+    private final AtomicReferenceArray<FilterWindow[]> windowChunks = new AtomicReferenceArray<>(MAX_CHUNKS);
+
+    public LinkDelayFilter(DelaydetectConfig delaydetectConfig) {
+        this.delayFilter = delaydetectConfig.getDelayFilter() == null
+                ? DelaydetectConfig.DelayFilter.None : delaydetectConfig.getDelayFilter();
+        this.windowSize = delayFilter == DelaydetectConfig.DelayFilter.None
+                ? 0 : Math.max(1, delaydetectConfig.getFilterWindow());
+        this.madThreshold = delaydetectConfig.getMadThreshold();
+    }
+
+    /**
+     * Passes a raw loop delay of a link through the filter.
+     *
+     * @param link
+     *            The link index in the LinkStore.
+     * @param loopDelay
+     *            The raw loop delay in nanoseconds.
+     * @return the loop delay to publish, -1 if the sample is rejected
+     */
+    public long filter(int link, long loopDelay) {
+        return getWindow(link).filter(loopDelay);
+    }
+
+    /**
+     * Counts a sample of a link that is rejected before the filter because
+     * its corrected delay is out of range.
+     */
+    public void rejectOutOfRange(int link) {
+        getWindow(link).countOutOfRange();
+    }
+
+    /**
+     * @return the accepted, filter-rejected and out-of-range sample counts
+     *         of a link
+     */
+    public long[] getCounters(int link) {
+        FilterWindow[] chunk = windowChunks.get(link >>> CHUNK_BITS);
+        FilterWindow window = chunk == null ? null : chunk[link & CHUNK_MASK];
+        if (window == null) {
+            return new long[3];
+        }
+        return new long[]{window.accepted, window.rejected, window.outOfRange};
+    }
+
+    private FilterWindow getWindow(int link) {
+        FilterWindow[] chunk = windowChunks.get(link >>> CHUNK_BITS);
+        if (chunk == null) {
+            windowChunks.compareAndSet(link >>> CHUNK_BITS, null, new FilterWindow[CHUNK_SIZE]);
+            chunk = windowChunks.get(link >>> CHUNK_BITS);
+        }
+        FilterWindow window = chunk[link & CHUNK_MASK];
+        if (window == null) {
+            synchronized (chunk) {
+                window = chunk[link & CHUNK_MASK];
+                if (window == null) {
+                    window = new FilterWindow(windowSize);
+                    chunk[link & CHUNK_MASK] = window;
+                }
+            }
+        }
+        return window;
+    }
+
+    private class FilterWindow {
+        private final long[] samples;
+        private final long[] scratch;
+        private int next;
+        private int count;
+        private volatile long accepted;
+        private volatile long rejected;
+        private volatile long outOfRange;
+
+        FilterWindow(int windowSize) {
+            this.samples = new long[windowSize];
+            this.scratch = new long[windowSize];
+        }
+
+        synchronized long filter(long sample) {
+            long result;
+            switch (delayFilter) {
+                case Median:
+                    add(sample);
+                    result = median(sortedCopy());
+                    break;
+                case MinWindow:
+                    add(sample);
+                    result = Long.MAX_VALUE;
+                    for (int i = 0; i < count; i++) {
+                        result = Math.min(result, samples[i]);
+                    }
+                    break;
+                case Mad:
+                    result = isOutlier(sample) ? -1 : sample;
+                    // outliers still enter the window, so a lasting shift is accepted
+                    add(sample);
+                    break;
+                default:
+                    result = sample;
+                    break;
+            }
+            if (result < 0) {
+                rejected++;
+            } else {
+                accepted++;
+            }
+            return result;
+        }
+
+        synchronized void countOutOfRange() {
+            outOfRange++;
+        }
+
+        private boolean isOutlier(long sample) {
+            if (count < samples.length) {
+                return false;
+            }
+            long median = median(sortedCopy());
+            for (int i = 0; i < count; i++) {
+                scratch[i] = Math.abs(samples[i] - median);
+            }
+            Arrays.sort(scratch, 0, count);
+            double mad = MAD_SCALE * median(scratch);
+            return mad > 0 && Math.abs(sample - median) > madThreshold * mad;
+        }
+
+        private void add(long sample) {
+            samples[next] = sample;
+            next = (next + 1) % samples.length;
+            if (count < samples.length) {
+                count++;
+            }
+        }
+
+        private long[] sortedCopy() {
+            System.arraycopy(samples, 0, scratch, 0, count);
+            Arrays.sort(scratch, 0, count);
+            return scratch;
+        }
+
+        private long median(long[] sorted) {
+            return count % 2 == 1 ? sorted[count / 2] : (sorted[count / 2 - 1] + sorted[count / 2]) / 2;
+        }
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright © 2017 bupt.dtj and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.bupt.delaydetect.impl;
+
+import org.opendaylight.yang.gen.v1.urn.opendaylight.packet.delaydetect.config.rev181107.DelaydetectConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * LinkHealth accounts the sequenced flood probes of every link. A gap in
+ * the sequence numbers received on a link counts the missing probes as
+ * lost; a probe arriving after a higher sequence number counts as
+ * reordered. A late probe is only taken off the lost count if it is among
+ * the last 64 sequence numbers and was really counted as lost, so a
+ * duplicate never cancels a loss. A probe further behind than that means
+ * the source switch reconnected and numbers its rounds from 1 again, so
+ * the accounting of the link restarts from it; a switch that leaves the
+ * inventory restarts the accounting of its links right away. A periodic
+ * sweep counts probes that
+ * have not arrived within the probe timeout as lost, so a link that stops
+ * delivering probes altogether is noticed, and withdraws the delay of links
+ * not seen for longer than the link expiry.
+ */
+public class LinkHealth implements Runnable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(LinkHealth.class);
+    private static final int CHUNK_BITS = 12;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+    private static final int MAX_CHUNKS = 1 << 16;
+    private static final int LOSS_WINDOW = 64;
+
+    private final LinkStore linkStore;
+    private final ProbeSequencer probeSequencer;
+    private final long probeTimeoutNanos;
+    private final long linkExpiryMillis;
+    private final AtomicReferenceArray<LinkSequence[]> sequenceChunks = new AtomicReferenceArray<>(MAX_CHUNKS);
+    private volatile DelayChangeNotifier delayChangeNotifier;
+
+    public LinkHealth(DelaydetectConfig delaydetectConfig, LinkStore linkStore, ProbeSequencer probeSequencer) {
+        this.linkStore = linkStore;
+        this.probeSequencer = probeSequencer;
+        this.probeTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(delaydetectConfig.getProbeTimeout());
+        this.linkExpiryMillis = TimeUnit.SECONDS.toMillis(delaydetectConfig.getLinkExpiry());
+    }
+
+    public void setDelayChangeNotifier(DelayChangeNotifier delayChangeNotifier) {
+        this.delayChangeNotifier = delayChangeNotifier;
+    }
+
+    /**
+     * Accounts a probe received on a link.
+     *
+     * @param link
+     *            The link index in the LinkStore.
+     * @param srcSwitch
+     *            The switch index of the probe's source.
+     * @param sequence
+     *            The sequence number of the probe, 0 if unsequenced.
+     */
+    public void onProbe(int link, int srcSwitch, long sequence) {
+        getSequence(link).onProbe(srcSwitch, sequence, System.currentTimeMillis());
+    }
+
+    /**
+     * Restarts the sequence accounting of the links probed from a switch
+     * that left the inventory, since it numbers its rounds from 1 again once
+     * it is back.
+     *
+     * @param nodeId
+     *            The switch id.
+     */
+    public void onSwitchRemoved(String nodeId) {
+        int switchIndex = linkStore.indexOfSwitch(nodeId);
+        if (switchIndex < 0) {
+            return;
+        }
+        int size = linkStore.size();
+        for (int link = 0; link < size; link++) {
+            LinkSequence[] chunk = sequenceChunks.get(link >>> CHUNK_BITS);
+            LinkSequence linkSequence = chunk == null ? null : chunk[link & CHUNK_MASK];
+            if (linkSequence != null && linkStore.getSrcSwitch(link) == switchIndex) {
+                linkSequence.restart();
+            }
+        }
+    }
+
+    /**
+     * @return the received, lost and reordered probe counts and the wall
+     *         clock time the link was last seen in milliseconds, null if the
+     *         link has not been seen
+     */
+    public long[] getCounters(int link) {
+        LinkSequence[] chunk = sequenceChunks.get(link >>> CHUNK_BITS);
+        LinkSequence linkSequence = chunk == null ? null : chunk[link & CHUNK_MASK];
+        return linkSequence == null ? null : linkSequence.getCounters();
+    }
+
+    @Override
+    public void run() {
+        try {
+            sweep(System.nanoTime(), System.currentTimeMillis());
+        } catch (RuntimeException e) {
+            LOG.warn("Link health sweep failed", e);
+        }
+    }
+
+    private void sweep(long now, long wallClock) {
+        int size = linkStore.size();
+        for (int link = 0; link < size; link++) {
+            LinkSequence[] chunk = sequenceChunks.get(link >>> CHUNK_BITS);
+            LinkSequence linkSequence = chunk == null ? null : chunk[link & CHUNK_MASK];
+            if (linkSequence == null) {
+                continue;
+            }
+            int srcSwitch = linkStore.getSrcSwitch(link);
+            if (srcSwitch >= 0) {
+                long timedOut = probeSequencer.getTimedOut(linkStore.getSwitchId(srcSwitch), now - probeTimeoutNanos);
+                linkSequence.onTimeout(srcSwitch, timedOut);
+            }
+            if (linkStore.hasDelay(link) && wallClock - linkSequence.lastSeen > linkExpiryMillis) {
+                linkStore.clearDelay(link);
+                DelayChangeNotifier delayChangeNotifier = this.delayChangeNotifier;
+                if (delayChangeNotifier != null) {
+                    delayChangeNotifier.onWithdrawn(link, wallClock);
+                }
+                LOG.debug("Link {} expired", linkStore.getNcId(link));
+            }
+        }
+    }
+
+    private LinkSequence getSequence(int link) {
+        LinkSequence[] chunk = sequenceChunks.get(link >>> CHUNK_BITS);
+        if (chunk == null) {
+            sequenceChunks.compareAndSet(link >>> CHUNK_BITS, null, new LinkSequence[CHUNK_SIZE]);
+            chunk = sequenceChunks.get(link >>> CHUNK_BITS);
+        }
+        LinkSequence linkSequence = chunk[link & CHUNK_MASK];
+        if (linkSequence == null) {
+            synchronized (chunk) {
+                linkSequence = chunk[link & CHUNK_MASK];
+                if (linkSequence == null) {
+                    linkSequence = new LinkSequence();
+                    chunk[link & CHUNK_MASK] = linkSequence;
+                }
+            }
+        }
+        return linkSequence;
+    }
+
+    private static class LinkSequence {
+        private int srcSwitch = -1;
+        // highest sequence number received or counted as lost, 0 before the first one
+        private long accounted;
+        // bit i is set if sequence number accounted - i was counted as lost
+        private long lostMask;
+        private long received;
+        private long lost;
+        private long reordered;
+        private volatile long lastSeen;
+
+        synchronized void onProbe(int srcSwitch, long sequence, long now) {
+            lastSeen = now;
+            if (sequence == 0) {
+                return;
+            }
+            if (srcSwitch != this.srcSwitch || sequence <= accounted - LOSS_WINDOW) {
+                // a new source numbers its rounds independently, a reconnected one from 1 again
+                this.srcSwitch = srcSwitch;
+                accounted = sequence - 1;
+                lostMask = 0;
+            }
+            if (sequence > accounted) {
+                long missing = sequence - accounted - 1;
+                lost += missing;
+                lostMask = shift(lostMask, sequence - accounted) | lowBits(Math.min(missing, LOSS_WINDOW - 1)) << 1;
+                accounted = sequence;
+                received++;
+                return;
+            }
+            long age = accounted - sequence;
+            if ((lostMask & 1L << age) != 0) {
+                lostMask &= ~(1L << age);
+                lost--;
+                received++;
+                reordered++;
+            }
+        }
+
+        synchronized void onTimeout(int srcSwitch, long timedOut) {
+            if (srcSwitch == this.srcSwitch && accounted > 0 && timedOut > accounted) {
+                long missing = timedOut - accounted;
+                lost += missing;
+                lostMask = shift(lostMask, missing) | lowBits(Math.min(missing, LOSS_WINDOW));
+                accounted = timedOut;
+            }
+        }
+
+        synchronized void restart() {
+            srcSwitch = -1;
+            accounted = 0;
+            lostMask = 0;
+        }
+
+        synchronized long[] getCounters() {
+            return new long[]{received, lost, reordered, lastSeen};
+        }
+
+        private static long shift(long mask, long distance) {
+            return distance >= LOSS_WINDOW ? 0 : mask << distance;
+        }
+
+        private static long lowBits(long count) {
+            return count >= LOSS_WINDOW ? -1L : (1L << count) - 1;
+        }
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright © 2017 bupt.dtj and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.bupt.delaydetect.impl;
+
+import org.opendaylight.yang.gen.v1.urn.opendaylight.packet.delaydetect.config.rev181107.DelaydetectConfig;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * LinkHistograms keeps a latency histogram over a sliding window for every
+ * link of the LinkStore, indexed by link index. Buckets are logarithmic in
+ * the style of HdrHistogram: 8 linear sub-buckets per power of two of the
+ * delay in units of 1024 ns, which bounds the error of a percentile to one
+ * eighth of its value. The window is a ring of slices; the oldest slice is
+ * cleared when the window moves past it. A histogram is allocated with the
+ * first sample of its link, after which recording allocates nothing.
+ */
+public class LinkHistograms {
+
+    private static final int UNIT_SHIFT = 10;
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 20;
+    static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+    private static final int CHUNK_BITS = 12;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+    private static final int MAX_CHUNKS = 1 << 16;
+
+    private final int slices;
+    private final long sliceMillis;
+    private final AtomicReferenceArray<LinkHistogram[]> histogramChunks = new AtomicReferenceArray<>(MAX_CHUNKS);
+
+    public LinkHistograms(DelaydetectConfig delaydetectConfig) {
+        this.slices = Math.max(1, delaydetectConfig.getHistogramSlices());
+        this.sliceMillis = Math.max(1L, TimeUnit.SECONDS.toMillis(delaydetectConfig.getHistogramWindow()) / slices);
+    }
+
+    /**
+     * Records a delay sample of a link.
+     *
+     * @param link
+     *            The link index in the LinkStore.
+     * @param delay
+     *            The link delay in nanoseconds.
+     */
+    public void record(int link, long delay) {
+        getHistogram(link).record(System.currentTimeMillis() / sliceMillis, delay);
+    }
+
+    /**
+     * Computes the percentiles of a link over the window.
+     *
+     * @param link
+     *            The link index in the LinkStore.
+     * @param percentiles
+     *            The percentiles to compute, between 0 and 100, ascending.
+     * @return the sample count, the minimum, the percentiles and the maximum
+     *         in nanoseconds; null if the window holds no sample
+     */
+    public long[] getPercentiles(int link, double... percentiles) {
+        LinkHistogram[] chunk = histogramChunks.get(link >>> CHUNK_BITS);
+        LinkHistogram histogram = chunk == null ? null : chunk[link & CHUNK_MASK];
+        if (histogram == null) {
+            return null;
+        }
+        return histogram.getPercentiles(System.currentTimeMillis() / sliceMillis, percentiles);
+    }
+
+    private LinkHistogram getHistogram(int link) {
+        LinkHistogram[] chunk = histogramChunks.get(link >>> CHUNK_BITS);
+        if (chunk == null) {
+            histogramChunks.compareAndSet(link >>> CHUNK_BITS, null, new LinkHistogram[CHUNK_SIZE]);
+            chunk = histogramChunks.get(link >>> CHUNK_BITS);
+        }
+        LinkHistogram histogram = chunk[link & CHUNK_MASK];
+        if (histogram == null) {
+            synchronized (chunk) {
+                histogram = chunk[link & CHUNK_MASK];
+                if (histogram == null) {
+                    histogram = new LinkHistogram(slices);
+                    chunk[link & CHUNK_MASK] = histogram;
+                }
+            }
+        }
+        return histogram;
+    }
+
+    static int bucketOf(long delay) {
+        long units = Math.max(0L, delay) >>> UNIT_SHIFT;
+        if (units < SUB_BUCKETS) {
+            return (int) units;
+        }
+        int exponent = Math.min(MAX_EXPONENT, 63 - Long.numberOfLeadingZeros(units));
+        if (exponent == MAX_EXPONENT && units >>> (MAX_EXPONENT + 1) != 0) {
+            return BUCKETS - 1;
+        }
+        int subBucket = (int) (units >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * @return the highest delay in nanoseconds that falls into a bucket
+     */
+    static long highestValueOf(int bucket) {
+        long highestUnits;
+        if (bucket < SUB_BUCKETS) {
+            highestUnits = bucket;
+        } else {
+            int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+            int subBucket = bucket % SUB_BUCKETS;
+            highestUnits = ((long) (SUB_BUCKETS + subBucket + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+        }
+        return ((highestUnits + 1) << UNIT_SHIFT) - 1;
+    }
+
+    private static class LinkHistogram {
+        private final int[] counts;
+        private final long[] sliceEpochs;
+        private final long[] sliceMins;
+        private final long[] sliceMaxs;
+        private final int[] sliceCounts;
+
+        LinkHistogram(int slices) {
+            this.counts = new int[slices * BUCKETS];
+            this.sliceEpochs = new long[slices];
+            this.sliceMins = new long[slices];
+            this.sliceMaxs = new long[slices];
+            this.sliceCounts = new int[slices];
+            Arrays.fill(sliceEpochs, -1L);
+        }
+
+        synchronized void record(long epoch, long delay) {
+            int slice = (int) (epoch % sliceEpochs.length);
+            if (sliceEpochs[slice] != epoch) {
+                Arrays.fill(counts, slice * BUCKETS, (slice + 1) * BUCKETS, 0);
+                sliceEpochs[slice] = epoch;
+                sliceMins[slice] = Long.MAX_VALUE;
+                sliceMaxs[slice] = Long.MIN_VALUE;
+                sliceCounts[slice] = 0;
+            }
+            counts[slice * BUCKETS + bucketOf(delay)]++;
+            sliceMins[slice] = Math.min(sliceMins[slice], delay);
+            sliceMaxs[slice] = Math.max(sliceMaxs[slice], delay);
+            sliceCounts[slice]++;
+        }
+
+        synchronized long[] getPercentiles(long epoch, double... percentiles) {
+            long count = 0;
+            long min = Long.MAX_VALUE;
+            long max = Long.MIN_VALUE;
+            int slices = sliceEpochs.length;
+            for (int slice = 0; slice < slices; slice++) {
+                if (isLive(slice, epoch)) {
+                    count += sliceCounts[slice];
+                    min = Math.min(min, sliceMins[slice]);
+                    max = Math.max(max, sliceMaxs[slice]);
+                }
+            }
+            if (count == 0) {
+                return null;
+            }
+            long[] result = new long[percentiles.length + 3];
+            result[0] = count;
+            result[1] = min;
+            result[result.length - 1] = max;
+            long seen = 0;
+            int next = 0;
+            for (int bucket = 0; bucket < BUCKETS && next < percentiles.length; bucket++) {
+                for (int slice = 0; slice < slices; slice++) {
+                    if (isLive(slice, epoch)) {
+                        seen += counts[slice * BUCKETS + bucket];
+                    }
+                }
+                while (next < percentiles.length && seen >= Math.ceil(percentiles[next] / 100.0 * count)) {
+                    result[2 + next++] = Math.max(min, Math.min(max, highestValueOf(bucket)));
+                }
+            }
+            return result;
+        }
+
+        private boolean isLive(int slice, long epoch) {
+            long sliceEpoch = sliceEpochs[slice];
+            return sliceEpoch >= 0 && epoch - sliceEpoch < sliceEpochs.length;
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright © 2017 bupt.dtj and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.bupt.delaydetect.impl;
+
+import org.bupt.delaydetect.impl.util.InventoryReader;
+import org.bupt.delaydetect.impl.util.PacketDispatcher;
+import org.bupt.delaydetect.impl.util.ProbeTemplateCache;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.NodeConnectorId;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.NodeConnectorRef;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.NodeId;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.Nodes;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.node.NodeConnector;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.node.NodeConnectorKey;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.nodes.Node;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.nodes.NodeKey;
+import org.opendaylight.yangtools.yang.binding.InstanceIdentifier;
+
+import java.util.List;
+
+/**
+ * LinkProber re-measures single links by sending a probe out of one port
+ * only, within the budget of the ProbeRateController. Each probe is a copy
+ * of the switch's template carrying its egress port number, so concurrent
+ * probes never share a buffer.
+ */
+public class LinkProber {
+
+    private final PacketDispatcher packetDispatcher;
+    private final InventoryReader inventoryReader;
+    private final ProbeRateController probeRateController;
+    private final ProbeTemplateCache probeTemplateCache = new ProbeTemplateCache();
+
+    public LinkProber(PacketDispatcher packetDispatcher, InventoryReader inventoryReader, ProbeRateController probeRateController) {
+        this.packetDispatcher = packetDispatcher;
+        this.inventoryReader = inventoryReader;
+        this.probeRateController = probeRateController;
+    }
+
+    /**
+     * Probes the link behind the specified node connector.
+     *
+     * @param ncId
+     *            The node connector id, e.g. "openflow:1:2".
+     * @return true if the probe was sent
+     */
+    public boolean probeLink(String ncId) {
+        String nodeId = ncId.substring(0, ncId.lastIndexOf(':'));
+        NodeConnectorRef egress = new NodeConnectorRef(InstanceIdentifier.builder(Nodes.class)
+                .child(Node.class, new NodeKey(new NodeId(nodeId)))
+                .child(NodeConnector.class, new NodeConnectorKey(new NodeConnectorId(ncId)))
+                .build());
+        return probeLink(nodeId, egress);
+    }
+
+    /**
+     * Probes the link behind the specified node connector.
+     *
+     * @param egress
+     *            The NodeConnector the probe is sent out of.
+     * @return true if the probe was sent
+     */
+    public boolean probeLink(NodeConnectorRef egress) {
+        return probeLink(egress.getValue().firstKeyOf(Node.class, NodeKey.class).getId().getValue(), egress);
+    }
+
+    /**
+     * Probes every port of a switch with a separate packet-out. Each probe
+     * carries its egress port number, so the receiving side learns which
+     * port of this switch each of its links starts at.
+     *
+     * @param nodeId
+     *            The switch id.
+     * @return the number of probes sent
+     */
+    public int discoverSwitch(String nodeId) {
+        List<NodeConnectorRef> nodeConnectors = inventoryReader.getSwitchNodeConnectors().get(nodeId);
+        if (nodeConnectors == null) {
+            return 0;
+        }
+        int sent = 0;
+        for (NodeConnectorRef egress : nodeConnectors) {
+            if (probeLink(nodeId, egress)) {
+                sent++;
+            }
+        }
+        return sent;
+    }
+
+    /**
+     * @return the number of probes {@link #discoverSwitch(String)} sends for
+     *         the specified switch
+     */
+    public int getPortCount(String nodeId) {
+        List<NodeConnectorRef> nodeConnectors = inventoryReader.getSwitchNodeConnectors().get(nodeId);
+        return nodeConnectors == null ? 0 : nodeConnectors.size();
+    }
+
+    private boolean probeLink(String nodeId, NodeConnectorRef egress) {
+        if (!inventoryReader.getControllerSwitchConnectors().containsKey(nodeId)) {
+            probeTemplateCache.remove(nodeId);
+            return false;
+        }
+        if (!probeRateController.tryAcquireSwitch(nodeId, 1)) {
+            return false;
+        }
+        if (!probeRateController.tryAcquireGlobal(1)) {
+            probeRateController.releaseSwitch(nodeId, 1);
+            return false;
+        }
+        String ncId = egress.getValue().firstKeyOf(NodeConnector.class, NodeConnectorKey.class).getId().getValue();
+        byte[] payload = probeTemplateCache.getTemplate(nodeId).stampCopy(System.nanoTime(), portNumberOf(ncId));
+        return packetDispatcher.probeLink(payload, egress);
+    }
+
+    private static long portNumberOf(String ncId) {
+        try {
+            return Long.parseLong(ncId.substring(ncId.lastIndexOf(':') + 1));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright © 2017 bupt.dtj and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.bupt.delaydetect.impl;
+
+import org.opendaylight.yang.gen.v1.urn.opendaylight.packet.delaydetect.config.rev181107.DelaydetectConfig;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * LinkRollups downsamples the delays of every link into per-second,
+ * per-minute and per-hour aggregates: min, average, max, p50, p99 and the
+ * sample count. Each resolution keeps a fixed number of closed intervals in
+ * circular int arrays and accumulates the open interval in a log-bucket
+ * histogram shared with LinkHistograms, so the memory of a link does not
+ * depend on how often it is probed. The arrays of a resolution are
+ * allocated with the first sample of the link.
+ */
+public class LinkRollups {
+
+    public static final int SECOND = 0;
+    public static final int MINUTE = 1;
+    public static final int HOUR = 2;
+
+    private static final long[] INTERVAL_MILLIS = {
+            TimeUnit.SECONDS.toMillis(1), TimeUnit.MINUTES.toMillis(1), TimeUnit.HOURS.toMillis(1)};
+    private static final int CHUNK_BITS = 12;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+    private static final int MAX_CHUNKS = 1 << 16;
+
+    private final int[] capacities;
+    private final AtomicReferenceArray<Rollup[][]> rollupChunks = new AtomicReferenceArray<>(MAX_CHUNKS);
+
+    public LinkRollups(DelaydetectConfig delaydetectConfig) {
+        this.capacities = new int[]{
+                Math.max(1, delaydetectConfig.getRollupSeconds()),
+                Math.max(1, delaydetectConfig.getRollupMinutes()),
+                Math.max(1, delaydetectConfig.getRollupHours())};
+    }
+
+    /**
+     * Folds a delay sample of a link into every resolution.
+     *
+     * @param link
+     *            The link index in the LinkStore.
+     * @param delay
+     *            The link delay in nanoseconds.
+     * @param timestamp
+     *            The wall clock time of the sample in milliseconds.
+     */
+    public void record(int link, long delay, long timestamp) {
+        Rollup[] rollups = getRollups(link);
+        for (int resolution = 0; resolution < rollups.length; resolution++) {
+            rollups[resolution].record(timestamp / INTERVAL_MILLIS[resolution], delay);
+        }
+    }
+
+    /**
+     * Returns the intervals of a link at a resolution, oldest first,
+     * including the interval still open.
+     *
+     * @param link
+     *            The link index in the LinkStore.
+     * @param resolution
+     *            SECOND, MINUTE or HOUR.
+     * @return for each interval its start time in milliseconds, min, average,
+     *         max, p50, p99 and sample count
+     */
+    public List<long[]> getSeries(int link, int resolution) {
+        Rollup[][] chunk = rollupChunks.get(link >>> CHUNK_BITS);
+        Rollup[] rollups = chunk == null ? null : chunk[link & CHUNK_MASK];
+        if (rollups == null) {
+            return new ArrayList<>();
+        }
+        return rollups[resolution].getSeries(System.currentTimeMillis() / INTERVAL_MILLIS[resolution],
+                INTERVAL_MILLIS[resolution]);
+    }
+
+    private Rollup[] getRollups(int link) {
+        Rollup[][] chunk = rollupChunks.get(link >>> CHUNK_BITS);
+        if (chunk == null) {
+            rollupChunks.compareAndSet(link >>> CHUNK_BITS, null, new Rollup[CHUNK_SIZE][]);
+            chunk = rollupChunks.get(link >>> CHUNK_BITS);
+        }
+        Rollup[] rollups = chunk[link & CHUNK_MASK];
+        if (rollups == null) {
+            synchronized (chunk) {
+                rollups = chunk[link & CHUNK_MASK];
+                if (rollups == null) {
+                    rollups = new Rollup[capacities.length];
+                    for (int resolution = 0; resolution < capacities.length; resolution++) {
+                        rollups[resolution] = new Rollup(capacities[resolution]);
+                    }
+                    chunk[link & CHUNK_MASK] = rollups;
+                }
+            }
+        }
+        return rollups;
+    }
+
+    private static class Rollup {
+        // closed intervals, slot = interval % capacity
+        private final long[] intervals;
+        private final int[] mins;
+        private final int[] avgs;
+        private final int[] maxs;
+        private final int[] p50s;
+        private final int[] p99s;
+        private final int[] counts;
+        // the open interval
+        private final int[] histogram = new int[LinkHistograms.BUCKETS];
+        private long openInterval = -1;
+        private long openMin;
+        private long openMax;
+        private long openSum;
+        private int openCount;
+
+        Rollup(int capacity) {
+            this.intervals = new long[capacity];
+            this.mins = new int[capacity];
+            this.avgs = new int[capacity];
+            this.maxs = new int[capacity];
+            this.p50s = new int[capacity];
+            this.p99s = new int[capacity];
+            this.counts = new int[capacity];
+            Arrays.fill(intervals, -1L);
+        }
+
+        synchronized void record(long interval, long delay) {
+            if (interval != openInterval) {
+                if (interval < openInterval) {
+                    // a late sample of a closed interval is dropped
+                    return;
+                }
+                close();
+                openInterval = interval;
+            }
+            histogram[LinkHistograms.bucketOf(delay)]++;
+            openMin = Math.min(openMin, delay);
+            openMax = Math.max(openMax, delay);
+            openSum += delay;
+            openCount++;
+        }
+
+        synchronized List<long[]> getSeries(long now, long intervalMillis) {
+            int capacity = intervals.length;
+            List<long[]> series = new ArrayList<>(capacity + 1);
+            for (long interval = now - capacity; interval < now; interval++) {
+                if (interval < 0) {
+                    continue;
+                }
+                int slot = (int) (interval % capacity);
+                if (intervals[slot] == interval) {
+                    series.add(new long[]{interval * intervalMillis, mins[slot], avgs[slot], maxs[slot],
+                            p50s[slot], p99s[slot], counts[slot]});
+                } else if (interval == openInterval && openCount > 0) {
+                    series.add(openPoint(intervalMillis));
+                }
+            }
+            if (openInterval == now && openCount > 0) {
+                series.add(openPoint(intervalMillis));
+            }
+            return series;
+        }
+
+        private long[] openPoint(long intervalMillis) {
+            return new long[]{openInterval * intervalMillis, openMin, openSum / openCount, openMax,
+                    percentile(50), percentile(99), openCount};
+        }
+
+        private void close() {
+            if (openCount > 0) {
+                int slot = (int) (openInterval % intervals.length);
+                intervals[slot] = openInterval;
+                mins[slot] = (int) openMin;
+                avgs[slot] = (int) (openSum / openCount);
+                maxs[slot] = (int) openMax;
+                p50s[slot] = (int) percentile(50);
+                p99s[slot] = (int) percentile(99);
+                counts[slot] = openCount;
+                Arrays.fill(histogram, 0);
+            }
+            openMin = Long.MAX_VALUE;
+            openMax = Long.MIN_VALUE;
+            openSum = 0;
+            openCount = 0;
+        }
+
+        private long percentile(double percentile) {
+            long threshold = (long) Math.ceil(percentile / 100.0 * openCount);
+            long seen = 0;
+            for (int bucket = 0; bucket < histogram.length; bucket++) {
+                seen += histogram[bucket];
+                if (seen >= threshold) {
+                    return Math.max(openMin, Math.min(openMax, LinkHistograms.highestValueOf(bucket)));
+                }
+            }
+            return openMax;
+        }
+    }
+}
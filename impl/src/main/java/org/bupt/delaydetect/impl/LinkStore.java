@@ -0,0 +1,329 @@
+/*
+ * Copyright © 2017 bupt.dtj and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.bupt.delaydetect.impl;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * LinkStore holds the state of every link in primitive arrays. A link is
+ * named by the node connector its probes arrive at and is interned once into
+ * a dense int index; switches are interned the same way. The arrays are
+ * allocated in fixed size chunks, so the store grows without copying, and
+ * fields are written with lazySet and read without locking. The delay of a
+ * link and its update time are published under a per-link sequence lock, so
+ * {@link #readDelay(int, long[])} never pairs the delay of one update with
+ * the time of another.
+ */
+public class LinkStore {
+
+    private static final int CHUNK_BITS = 12;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+    private static final int MAX_CHUNKS = 1 << 16;
+    private static final int[] NO_LINKS = new int[0];
+
+    // Key: NodeConnectorId, Value: index of the link ending at this node connector
+    private final Map<String, Integer> linkIndexes = new ConcurrentHashMap<>();
+    // Key: SwitchId, Value: index of this switch
+    private final Map<String, Integer> switchIndexes = new ConcurrentHashMap<>();
+    private final AtomicReferenceArray<LinkChunk> linkChunks = new AtomicReferenceArray<>(MAX_CHUNKS);
+    private volatile int linkCount;
+    // guarded by this, replaced on write
+    private volatile String[] switchIds = new String[16];
+    // Index: switch index, Value: indexes of the links starting or ending at this switch
+    private volatile int[][] switchLinks = new int[16][];
+    private int switchCount;
+
+    /**
+     * Returns the index of a link, adding the link if it is new.
+     *
+     * @param ncId
+     *            The node connector the probes of the link arrive at.
+     * @return the link index
+     */
+    public int intern(String ncId) {
+        Integer link = linkIndexes.get(ncId);
+        return link != null ? link : addLink(ncId);
+    }
+
+    /**
+     * @return the link index, -1 if the link is unknown
+     */
+    public int indexOf(String ncId) {
+        Integer link = linkIndexes.get(ncId);
+        return link != null ? link : -1;
+    }
+
+    /**
+     * @return the number of links, all indexes below it are valid
+     */
+    public int size() {
+        return linkCount;
+    }
+
+    public String getNcId(int link) {
+        return chunkOf(link).ncIds[link & CHUNK_MASK];
+    }
+
+    /**
+     * @return the switch index, -1 if the switch is unknown
+     */
+    public int indexOfSwitch(String nodeId) {
+        Integer switchIndex = switchIndexes.get(nodeId);
+        return switchIndex != null ? switchIndex : -1;
+    }
+
+    public String getSwitchId(int switchIndex) {
+        return switchIds[switchIndex];
+    }
+
+    public int getDstSwitch(int link) {
+        return chunkOf(link).dstSwitches.get(link & CHUNK_MASK);
+    }
+
+    /**
+     * @return the switch index of the link's source, -1 if not known yet
+     */
+    public int getSrcSwitch(int link) {
+        return chunkOf(link).srcSwitches.get(link & CHUNK_MASK);
+    }
+
+    /**
+     * Records the switch a probe of the link was sent from. Only a changed
+     * dpid touches the switch index.
+     *
+     * @return the switch index of the source
+     */
+    public int setSource(int link, long srcDpid) {
+        LinkChunk chunk = chunkOf(link);
+        int slot = link & CHUNK_MASK;
+        int srcSwitch = chunk.srcSwitches.get(slot);
+        if (srcSwitch >= 0 && chunk.srcDpids.get(slot) == srcDpid) {
+            return srcSwitch;
+        }
+        return moveSource(link, srcDpid);
+    }
+
+    public long getLoopDelay(int link) {
+        return chunkOf(link).loopDelays.get(link & CHUNK_MASK);
+    }
+
+    public void setLoopDelay(int link, long loopDelay) {
+        chunkOf(link).loopDelays.lazySet(link & CHUNK_MASK, loopDelay);
+    }
+
+    /**
+     * Publishes the delay of a link.
+     *
+     * @param delay
+     *            The link delay in nanoseconds.
+     * @param updateTime
+     *            The wall clock time of the update in milliseconds.
+     */
+    public void setDelay(int link, long delay, long updateTime) {
+        LinkChunk chunk = chunkOf(link);
+        int slot = link & CHUNK_MASK;
+        long sequence = beginWrite(chunk, slot);
+        chunk.delays.lazySet(slot, delay);
+        chunk.updateTimes.lazySet(slot, updateTime);
+        chunk.sequences.lazySet(slot, sequence + 1);
+    }
+
+    /**
+     * Withdraws the delay of a link. The loop delay is reset as well, so an
+     * echo refresh cannot publish the link again before its next probe.
+     */
+    public void clearDelay(int link) {
+        LinkChunk chunk = chunkOf(link);
+        int slot = link & CHUNK_MASK;
+        long sequence = beginWrite(chunk, slot);
+        chunk.updateTimes.lazySet(slot, 0L);
+        chunk.sequences.lazySet(slot, sequence + 1);
+        chunk.loopDelays.lazySet(slot, 0L);
+    }
+
+    /**
+     * Reads the delay of a link together with the time it was published.
+     *
+     * @param updateTime
+     *            Receives the wall clock time of the delay in milliseconds
+     *            in its first element, 0 if the link has none.
+     * @return the link delay in nanoseconds, -1 if the link has none
+     */
+    public long readDelay(int link, long[] updateTime) {
+        LinkChunk chunk = chunkOf(link);
+        int slot = link & CHUNK_MASK;
+        while (true) {
+            long sequence = chunk.sequences.get(slot);
+            if ((sequence & 1) == 0) {
+                long delay = chunk.delays.get(slot);
+                long time = chunk.updateTimes.get(slot);
+                if (chunk.sequences.get(slot) == sequence) {
+                    updateTime[0] = time;
+                    return time == 0 ? -1 : delay;
+                }
+            }
+        }
+    }
+
+    public boolean hasDelay(int link) {
+        return getUpdateTime(link) != 0;
+    }
+
+    public long getDelay(int link) {
+        return chunkOf(link).delays.get(link & CHUNK_MASK);
+    }
+
+    /**
+     * @return the wall clock time of the last published delay in
+     *         milliseconds, 0 if the link has none
+     */
+    public long getUpdateTime(int link) {
+        return chunkOf(link).updateTimes.get(link & CHUNK_MASK);
+    }
+
+    /**
+     * @return the indexes of the links starting or ending at a switch
+     */
+    public int[] getSwitchLinks(String nodeId) {
+        Integer switchIndex = switchIndexes.get(nodeId);
+        if (switchIndex == null) {
+            return NO_LINKS;
+        }
+        int[] links = switchLinks[switchIndex];
+        return links != null ? links : NO_LINKS;
+    }
+
+    /**
+     * Makes the sequence of a slot odd; writers of the same slot take turns.
+     *
+     * @return the odd sequence
+     */
+    private static long beginWrite(LinkChunk chunk, int slot) {
+        while (true) {
+            long sequence = chunk.sequences.get(slot);
+            if ((sequence & 1) == 0 && chunk.sequences.compareAndSet(slot, sequence, sequence + 1)) {
+                return sequence + 1;
+            }
+        }
+    }
+
+    private LinkChunk chunkOf(int link) {
+        return linkChunks.get(link >>> CHUNK_BITS);
+    }
+
+    private synchronized int addLink(String ncId) {
+        Integer existing = linkIndexes.get(ncId);
+        if (existing != null) {
+            return existing;
+        }
+        int link = linkCount;
+        if (link >>> CHUNK_BITS >= MAX_CHUNKS) {
+            throw new IllegalStateException("Link store is full");
+        }
+        LinkChunk chunk = linkChunks.get(link >>> CHUNK_BITS);
+        if (chunk == null) {
+            chunk = new LinkChunk();
+            linkChunks.set(link >>> CHUNK_BITS, chunk);
+        }
+        int slot = link & CHUNK_MASK;
+        int dstSwitch = internSwitch(ncId.substring(0, ncId.lastIndexOf(':')));
+        chunk.ncIds[slot] = ncId;
+        chunk.dstSwitches.set(slot, dstSwitch);
+        chunk.srcSwitches.set(slot, -1);
+        addSwitchLink(dstSwitch, link);
+        linkCount = link + 1;
+        linkIndexes.put(ncId, link);
+        return link;
+    }
+
+    private synchronized int moveSource(int link, long srcDpid) {
+        LinkChunk chunk = chunkOf(link);
+        int slot = link & CHUNK_MASK;
+        int oldSwitch = chunk.srcSwitches.get(slot);
+        if (oldSwitch >= 0 && chunk.srcDpids.get(slot) == srcDpid) {
+            return oldSwitch;
+        }
+        int dstSwitch = chunk.dstSwitches.get(slot);
+        int srcSwitch = internSwitch("openflow:" + Long.toUnsignedString(srcDpid));
+        if (oldSwitch >= 0 && oldSwitch != dstSwitch) {
+            removeSwitchLink(oldSwitch, link);
+        }
+        if (srcSwitch != dstSwitch) {
+            addSwitchLink(srcSwitch, link);
+        }
+        chunk.srcDpids.set(slot, srcDpid);
+        chunk.srcSwitches.set(slot, srcSwitch);
+        return srcSwitch;
+    }
+
+    private int internSwitch(String nodeId) {
+        Integer existing = switchIndexes.get(nodeId);
+        if (existing != null) {
+            return existing;
+        }
+        int switchIndex = switchCount++;
+        if (switchIndex == switchIds.length) {
+            switchIds = Arrays.copyOf(switchIds, switchIndex * 2);
+            switchLinks = Arrays.copyOf(switchLinks, switchIndex * 2);
+        }
+        String[] ids = switchIds;
+        ids[switchIndex] = nodeId;
+        switchIds = ids;
+        switchIndexes.put(nodeId, switchIndex);
+        return switchIndex;
+    }
+
+    private void addSwitchLink(int switchIndex, int link) {
+        int[][] allLinks = switchLinks;
+        int[] links = allLinks[switchIndex];
+        if (links == null) {
+            links = new int[]{link};
+        } else {
+            links = Arrays.copyOf(links, links.length + 1);
+            links[links.length - 1] = link;
+        }
+        allLinks[switchIndex] = links;
+        switchLinks = allLinks;
+    }
+
+    private void removeSwitchLink(int switchIndex, int link) {
+        int[][] allLinks = switchLinks;
+        int[] links = allLinks[switchIndex];
+        if (links == null) {
+            return;
+        }
+        int[] remaining = new int[links.length];
+        int count = 0;
+        for (int other : links) {
+            if (other != link) {
+                remaining[count++] = other;
+            }
+        }
+        allLinks[switchIndex] = Arrays.copyOf(remaining, count);
+        switchLinks = allLinks;
+    }
+
+    private static class LinkChunk {
+        // written once before the link index is published
+        private final String[] ncIds = new String[CHUNK_SIZE];
+        private final AtomicIntegerArray dstSwitches = new AtomicIntegerArray(CHUNK_SIZE);
+        private final AtomicIntegerArray srcSwitches = new AtomicIntegerArray(CHUNK_SIZE);
+        private final AtomicLongArray srcDpids = new AtomicLongArray(CHUNK_SIZE);
+        private final AtomicLongArray loopDelays = new AtomicLongArray(CHUNK_SIZE);
+        private final AtomicLongArray delays = new AtomicLongArray(CHUNK_SIZE);
+        private final AtomicLongArray updateTimes = new AtomicLongArray(CHUNK_SIZE);
+        // odd while the delay and update time of the link are being written
+        private final AtomicLongArray sequences = new AtomicLongArray(CHUNK_SIZE);
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright © 2017 bupt.dtj and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.bupt.delaydetect.impl;
+
+import java.util.Arrays;
+
+/**
+ * A binary min-heap of distance and node pairs packed into longs, the
+ * distance in the high bits and the node in the low NODE_BITS, for Dijkstra
+ * runs without boxing.
+ */
+class LongHeap {
+
+    static final int NODE_BITS = 24;
+    static final long NODE_MASK = (1L << NODE_BITS) - 1;
+
+    private long[] entries = new long[64];
+    private int size;
+
+    void clear() {
+        size = 0;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    void push(long entry) {
+        if (size == entries.length) {
+            entries = Arrays.copyOf(entries, size * 2);
+        }
+        int i = size++;
+        while (i > 0 && entries[(i - 1) / 2] > entry) {
+            entries[i] = entries[(i - 1) / 2];
+            i = (i - 1) / 2;
+        }
+        entries[i] = entry;
+    }
+
+    long pop() {
+        long top = entries[0];
+        long last = entries[--size];
+        int i = 0;
+        while (2 * i + 1 < size) {
+            int child = 2 * i + 1;
+            if (child + 1 < size && entries[child + 1] < entries[child]) {
+                child++;
+            }
+            if (entries[child] >= last) {
+                break;
+            }
+            entries[i] = entries[child];
+            i = child;
+        }
+        entries[i] = last;
+        return top;
+    }
+}
@@ -0,0 +1,338 @@
+/*
+ * Copyright © 2017 bupt.dtj and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.bupt.delaydetect.impl;
+
+import org.opendaylight.yang.gen.v1.urn.opendaylight.packet.delaydetect.config.rev181107.DelaydetectConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * PathEngine keeps a directed graph of the switches weighted by link delay
+ * and answers path delay and lowest-delay path queries. An edge runs from
+ * the source switch of a link, taken from the probes, to the switch the
+ * link ends at. The graph follows the DelaySnapshots change log, so it only
+ * looks at links that changed since the last version it applied.
+ *
+ * <p>Shortest paths come from per-source Dijkstra trees kept in an LRU
+ * cache. Routing weights only move when a delay changes by more than the
+ * path threshold; such a change drops exactly the trees it can affect: a
+ * worse or withdrawn edge the trees that use it, a better or new edge the
+ * trees it would shorten. Reported path delays always use the latest
+ * delays.
+ */
+public class PathEngine implements Runnable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PathEngine.class);
+    private static final long UNREACHABLE = Long.MAX_VALUE;
+    private static final int[] NO_LINKS = new int[0];
+
+    private final LinkStore linkStore;
+    private final DelaySnapshots delaySnapshots;
+    private final long threshold;
+    private final Map<Integer, Tree> trees;
+    private final LongHeap heap = new LongHeap();
+    private long version;
+
+    // Index: link index
+    private long[] weights = new long[0];
+    private long[] delays = new long[0];
+    private int[] edgeSources = new int[0];
+    private int[] edgeTargets = new int[0];
+    // Index: switch index, Value: links leaving the switch
+    private int[][] outLinks = new int[0][];
+
+    public PathEngine(DelaydetectConfig delaydetectConfig, LinkStore linkStore, DelaySnapshots delaySnapshots) {
+        this.linkStore = linkStore;
+        this.delaySnapshots = delaySnapshots;
+        this.threshold = delaydetectConfig.getPathThreshold();
+        final int cacheSize = Math.max(1, delaydetectConfig.getPathCacheSize());
+        this.trees = new LinkedHashMap<Integer, Tree>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Tree> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    /**
+     * Applies the link changes of the snapshots published since the last
+     * run.
+     */
+    @Override
+    public void run() {
+        try {
+            update();
+        } catch (RuntimeException e) {
+            LOG.warn("Failed to update the path graph", e);
+        }
+    }
+
+    /**
+     * Finds the lowest-delay path between two switches.
+     *
+     * @param srcNodeId
+     *            The switch the path starts at.
+     * @param dstNodeId
+     *            The switch the path ends at.
+     * @return the path, null if there is none
+     */
+    public synchronized Path getShortestPath(String srcNodeId, String dstNodeId) {
+        int source = linkStore.indexOfSwitch(srcNodeId);
+        int destination = linkStore.indexOfSwitch(dstNodeId);
+        if (source < 0 || destination < 0) {
+            return null;
+        }
+        if (source == destination) {
+            return new Path(NO_LINKS, 0);
+        }
+        if (source >= outLinks.length) {
+            return null;
+        }
+        Tree tree = trees.get(source);
+        if (tree == null) {
+            tree = computeTree(source);
+            trees.put(source, tree);
+        }
+        if (tree.distanceOf(destination) == UNREACHABLE) {
+            return null;
+        }
+        int hops = 0;
+        for (int node = destination; node != source; node = edgeSources[tree.parentLinks[node]]) {
+            hops++;
+        }
+        int[] links = new int[hops];
+        long delay = 0;
+        for (int node = destination; node != source; node = edgeSources[tree.parentLinks[node]]) {
+            int link = tree.parentLinks[node];
+            links[--hops] = link;
+            delay += delays[link];
+        }
+        return new Path(links, delay);
+    }
+
+    /**
+     * Measures a path given as its switches, taking the lowest-delay link
+     * between each pair of consecutive switches.
+     *
+     * @param nodeIds
+     *            The switches of the path in order.
+     * @return the path, null if two consecutive switches have no link
+     */
+    public synchronized Path getPathDelay(List<String> nodeIds) {
+        int hops = Math.max(0, nodeIds.size() - 1);
+        int[] links = new int[hops];
+        long delay = 0;
+        for (int hop = 0; hop < hops; hop++) {
+            int from = linkStore.indexOfSwitch(nodeIds.get(hop));
+            int to = linkStore.indexOfSwitch(nodeIds.get(hop + 1));
+            if (from < 0 || to < 0 || from >= outLinks.length || outLinks[from] == null) {
+                return null;
+            }
+            int best = -1;
+            for (int link : outLinks[from]) {
+                if (edgeTargets[link] == to && (best < 0 || delays[link] < delays[best])) {
+                    best = link;
+                }
+            }
+            if (best < 0) {
+                return null;
+            }
+            links[hop] = best;
+            delay += delays[best];
+        }
+        return new Path(links, delay);
+    }
+
+    private void update() {
+        DelaySnapshot snapshot = delaySnapshots.getSnapshot();
+        if (snapshot.getVersion() == version) {
+            return;
+        }
+        int[] changedLinks = delaySnapshots.getChangedLinks(version, snapshot.getVersion());
+        synchronized (this) {
+            if (changedLinks == null) {
+                // the change log has moved on, so every link is checked
+                changedLinks = new int[linkStore.size()];
+                for (int link = 0; link < changedLinks.length; link++) {
+                    changedLinks[link] = link;
+                }
+            }
+            for (int link : changedLinks) {
+                int position = snapshot.positionOf(link);
+                if (position >= 0) {
+                    setEdge(link, snapshot.getSrcSwitch(position), snapshot.getDelay(position));
+                } else {
+                    setEdge(link, -1, -1);
+                }
+            }
+            version = snapshot.getVersion();
+        }
+    }
+
+    /**
+     * Moves, reweighs or removes the edge of a link and drops the trees the
+     * change can affect.
+     */
+    private void setEdge(int link, int source, long delay) {
+        if (link >= weights.length) {
+            int length = Math.max(link + 1, weights.length * 2);
+            int oldLength = weights.length;
+            weights = Arrays.copyOf(weights, length);
+            delays = Arrays.copyOf(delays, length);
+            edgeSources = Arrays.copyOf(edgeSources, length);
+            edgeTargets = Arrays.copyOf(edgeTargets, length);
+            Arrays.fill(edgeSources, oldLength, length, -1);
+        }
+        int oldSource = edgeSources[link];
+        long oldWeight = weights[link];
+        delays[link] = delay;
+        if (source == oldSource && source >= 0
+                && Math.abs(delay - oldWeight) * 100 <= threshold * oldWeight) {
+            // within the threshold the routing weight stays put
+            return;
+        }
+        int target = linkStore.getDstSwitch(link);
+        if (oldSource >= 0 && (source != oldSource || delay > oldWeight)) {
+            invalidateUsing(link, target);
+        }
+        if (source >= 0 && (source != oldSource || delay < oldWeight)) {
+            invalidateShortenedBy(source, target, delay);
+        }
+        if (source != oldSource) {
+            if (oldSource >= 0) {
+                removeOutLink(oldSource, link);
+            }
+            if (source >= 0) {
+                addOutLink(source, link);
+            }
+        }
+        edgeSources[link] = source;
+        edgeTargets[link] = target;
+        weights[link] = delay;
+    }
+
+    private void invalidateUsing(int link, int target) {
+        Iterator<Tree> iterator = trees.values().iterator();
+        while (iterator.hasNext()) {
+            Tree tree = iterator.next();
+            if (target < tree.parentLinks.length && tree.parentLinks[target] == link) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private void invalidateShortenedBy(int source, int target, long weight) {
+        Iterator<Tree> iterator = trees.values().iterator();
+        while (iterator.hasNext()) {
+            Tree tree = iterator.next();
+            long sourceDistance = tree.distanceOf(source);
+            if (sourceDistance != UNREACHABLE && sourceDistance + weight < tree.distanceOf(target)) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private void addOutLink(int source, int link) {
+        if (source >= outLinks.length) {
+            outLinks = Arrays.copyOf(outLinks, Math.max(source + 1, outLinks.length * 2));
+        }
+        int[] links = outLinks[source];
+        if (links == null) {
+            outLinks[source] = new int[]{link};
+        } else {
+            links = Arrays.copyOf(links, links.length + 1);
+            links[links.length - 1] = link;
+            outLinks[source] = links;
+        }
+    }
+
+    private void removeOutLink(int source, int link) {
+        int[] links = outLinks[source];
+        int[] remaining = new int[links.length - 1];
+        int count = 0;
+        for (int other : links) {
+            if (other != link) {
+                remaining[count++] = other;
+            }
+        }
+        outLinks[source] = remaining;
+    }
+
+    private Tree computeTree(int source) {
+        int switches = outLinks.length;
+        for (int target : edgeTargets) {
+            switches = Math.max(switches, target + 1);
+        }
+        long[] distances = new long[switches];
+        int[] parentLinks = new int[switches];
+        Arrays.fill(distances, UNREACHABLE);
+        Arrays.fill(parentLinks, -1);
+        distances[source] = 0;
+        heap.clear();
+        heap.push(source);
+        while (!heap.isEmpty()) {
+            long entry = heap.pop();
+            int node = (int) (entry & LongHeap.NODE_MASK);
+            long distance = entry >>> LongHeap.NODE_BITS;
+            if (distance > distances[node] || node >= outLinks.length || outLinks[node] == null) {
+                continue;
+            }
+            for (int link : outLinks[node]) {
+                int target = edgeTargets[link];
+                long candidate = distance + weights[link];
+                if (candidate < distances[target]) {
+                    distances[target] = candidate;
+                    parentLinks[target] = link;
+                    heap.push(candidate << LongHeap.NODE_BITS | target);
+                }
+            }
+        }
+        return new Tree(distances, parentLinks);
+    }
+
+    /**
+     * A path as link indexes in order and its delay in nanoseconds.
+     */
+    public static class Path {
+        private final int[] links;
+        private final long delay;
+
+        Path(int[] links, long delay) {
+            this.links = links;
+            this.delay = delay;
+        }
+
+        public int[] getLinks() {
+            return links;
+        }
+
+        public long getDelay() {
+            return delay;
+        }
+    }
+
+    private static class Tree {
+        private final long[] distances;
+        private final int[] parentLinks;
+
+        Tree(long[] distances, int[] parentLinks) {
+            this.distances = distances;
+            this.parentLinks = parentLinks;
+        }
+
+        long distanceOf(int node) {
+            return node < distances.length ? distances[node] : UNREACHABLE;
+        }
+    }
+}
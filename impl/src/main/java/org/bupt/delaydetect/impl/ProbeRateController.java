@@ -0,0 +1,212 @@
+/*
+ * Copyright © 2017 bupt.dtj and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.bupt.delaydetect.impl;
+
+import org.opendaylight.yang.gen.v1.urn.opendaylight.packet.delaydetect.config.rev181107.DelaydetectConfig;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ProbeRateController caps the number of probe packet-outs with a global
+ * token bucket and one token bucket per switch. The buckets only hold a
+ * tenth of a second of budget, so probes beyond the budget are spread over
+ * time instead of being sent in bursts.
+ */
+public class ProbeRateController {
+
+    private static final long BURST_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final long globalProbeRate;
+    private final long switchProbeRate;
+    private final TokenBucket globalBucket;
+    // Key: SwitchId, Value: the token bucket of this switch
+    private final Map<String, TokenBucket> switchBuckets = new ConcurrentHashMap<>();
+
+    private final AtomicLong deferredProbes = new AtomicLong();
+    private long windowStart = System.nanoTime();
+    private long windowProbes;
+    private volatile long probeRate;
+
+    public ProbeRateController(DelaydetectConfig delaydetectConfig) {
+        this.globalProbeRate = delaydetectConfig.getGlobalProbeRate();
+        this.switchProbeRate = delaydetectConfig.getSwitchProbeRate();
+        this.globalBucket = new TokenBucket(globalProbeRate);
+    }
+
+    /**
+     * Takes the specified number of probes from the budget of a switch.
+     *
+     * @param nodeId
+     *            The switch id.
+     * @param probes
+     *            The number of packet-outs about to be sent.
+     * @return false if the switch has used up its budget
+     */
+    public boolean tryAcquireSwitch(String nodeId, int probes) {
+        if (switchProbeRate == 0) {
+            return true;
+        }
+        TokenBucket bucket = switchBuckets.get(nodeId);
+        if (bucket == null) {
+            bucket = new TokenBucket(switchProbeRate);
+            TokenBucket existing = switchBuckets.putIfAbsent(nodeId, bucket);
+            if (existing != null) {
+                bucket = existing;
+            }
+        }
+        if (!bucket.tryAcquire(probes)) {
+            deferredProbes.addAndGet(probes);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Gives back probes taken by {@link #tryAcquireSwitch(String, int)} that
+     * were not sent.
+     */
+    public void releaseSwitch(String nodeId, int probes) {
+        TokenBucket bucket = switchBuckets.get(nodeId);
+        if (bucket != null) {
+            bucket.release(probes);
+        }
+    }
+
+    /**
+     * @return nanoseconds until the budget of a switch allows sending again
+     */
+    public long getSwitchWaitNanos(String nodeId) {
+        TokenBucket bucket = switchBuckets.get(nodeId);
+        return bucket == null ? 0 : bucket.getWaitNanos();
+    }
+
+    /**
+     * Drops the budget of a switch that left the inventory.
+     */
+    public void remove(String nodeId) {
+        switchBuckets.remove(nodeId);
+    }
+
+    /**
+     * Takes the specified number of probes from the global budget.
+     *
+     * @param probes
+     *            The number of packet-outs about to be sent.
+     * @return false if the global budget is used up
+     */
+    public boolean tryAcquireGlobal(int probes) {
+        if (globalProbeRate != 0 && !globalBucket.tryAcquire(probes)) {
+            deferredProbes.addAndGet(probes);
+            return false;
+        }
+        recordSent(probes);
+        return true;
+    }
+
+    /**
+     * @return nanoseconds until the global budget allows sending again
+     */
+    public long getGlobalWaitNanos() {
+        return globalProbeRate == 0 ? 0 : globalBucket.getWaitNanos();
+    }
+
+    public long getGlobalProbeRate() {
+        return globalProbeRate;
+    }
+
+    public long getSwitchProbeRate() {
+        return switchProbeRate;
+    }
+
+    /**
+     * @return probes sent per second, measured over the last full second
+     */
+    public long getProbeRate() {
+        synchronized (this) {
+            rollWindow(System.nanoTime());
+        }
+        return probeRate;
+    }
+
+    /**
+     * @return the share of the global budget in use, in percent
+     */
+    public int getBudgetUtilization() {
+        if (globalProbeRate == 0) {
+            return 0;
+        }
+        return (int) Math.min(100L, getProbeRate() * 100L / globalProbeRate);
+    }
+
+    public long getDeferredProbes() {
+        return deferredProbes.get();
+    }
+
+    private synchronized void recordSent(int probes) {
+        rollWindow(System.nanoTime());
+        windowProbes += probes;
+    }
+
+    private void rollWindow(long now) {
+        long elapsed = now - windowStart;
+        if (elapsed >= WINDOW_NANOS) {
+            probeRate = elapsed >= 2 * WINDOW_NANOS ? 0 : windowProbes;
+            windowProbes = 0;
+            windowStart = now;
+        }
+    }
+
+    /**
+     * A token bucket refilled at a fixed rate. A request is granted as long
+     * as any token is left, so the bucket may go into debt for requests
+     * larger than its capacity; the debt is paid back before the next grant.
+     */
+    private static class TokenBucket {
+        private final double tokensPerNano;
+        private final double capacity;
+        private double tokens;
+        private long lastRefill = System.nanoTime();
+
+        TokenBucket(long ratePerSecond) {
+            this.tokensPerNano = ratePerSecond / (double) TimeUnit.SECONDS.toNanos(1);
+            this.capacity = Math.max(1.0, tokensPerNano * BURST_NANOS);
+            this.tokens = capacity;
+        }
+
+        synchronized boolean tryAcquire(int permits) {
+            refill();
+            if (tokens <= 0) {
+                return false;
+            }
+            tokens -= permits;
+            return true;
+        }
+
+        synchronized void release(int permits) {
+            tokens = Math.min(capacity, tokens + permits);
+        }
+
+        synchronized long getWaitNanos() {
+            refill();
+            if (tokens > 0) {
+                return 0;
+            }
+            return (long) ((1.0 - tokens) / tokensPerNano);
+        }
+
+        private void refill() {
+            long now = System.nanoTime();
+            tokens = Math.min(capacity, tokens + (now - lastRefill) * tokensPerNano);
+            lastRefill = now;
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright © 2017 bupt.dtj and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.bupt.delaydetect.impl;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * ProbeRecordRing is a bounded, preallocated multi-producer single-consumer
+ * ring of received probe records. The fields of a record live in parallel
+ * primitive arrays, so publishing a record allocates nothing. Producers
+ * claim a slot with a CAS on the tail and release it by advancing the
+ * slot's sequence; the consumer reads a slot once its sequence shows it is
+ * published. A full ring drops the record instead of blocking the producer.
+ */
+public class ProbeRecordRing {
+
+    private final int capacity;
+    private final int mask;
+    private final AtomicLongArray sequences;
+    private final int[] links;
+    private final long[] arrivalTimes;
+    private final long[] sendTimes;
+    private final long[] srcDpids;
+    private final long[] egressPorts;
+    private final long[] probeSequences;
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    // written by the consumer only
+    private volatile long head;
+
+    public ProbeRecordRing(int minCapacity) {
+        this.capacity = Integer.highestOneBit(Math.max(2, minCapacity - 1) << 1);
+        this.mask = capacity - 1;
+        this.sequences = new AtomicLongArray(capacity);
+        this.links = new int[capacity];
+        this.arrivalTimes = new long[capacity];
+        this.sendTimes = new long[capacity];
+        this.srcDpids = new long[capacity];
+        this.egressPorts = new long[capacity];
+        this.probeSequences = new long[capacity];
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * Publishes a probe record.
+     *
+     * @return false if the ring is full and the record is dropped
+     */
+    public boolean offer(int link, long arrivalTime, long sendTime, long srcDpid, long egressPort, long sequence) {
+        long position;
+        int slot;
+        while (true) {
+            position = tail.get();
+            slot = (int) position & mask;
+            long slotSequence = sequences.get(slot);
+            if (slotSequence == position) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+            } else if (slotSequence < position) {
+                dropped.incrementAndGet();
+                return false;
+            }
+        }
+        links[slot] = link;
+        arrivalTimes[slot] = arrivalTime;
+        sendTimes[slot] = sendTime;
+        srcDpids[slot] = srcDpid;
+        egressPorts[slot] = egressPort;
+        probeSequences[slot] = sequence;
+        sequences.lazySet(slot, position + 1);
+        return true;
+    }
+
+    /**
+     * Hands up to maxRecords published records to the consumer. Must only be
+     * called by the single consumer thread.
+     *
+     * @return the number of records drained
+     */
+    public int drain(RecordHandler handler, int maxRecords) {
+        long position = head;
+        int drained = 0;
+        try {
+            while (drained < maxRecords) {
+                int slot = (int) position & mask;
+                if (sequences.get(slot) != position + 1) {
+                    break;
+                }
+                int link = links[slot];
+                long arrivalTime = arrivalTimes[slot];
+                long sendTime = sendTimes[slot];
+                long srcDpid = srcDpids[slot];
+                long egressPort = egressPorts[slot];
+                long sequence = probeSequences[slot];
+                // release the slot before the handler runs, so a failing record is not retried
+                sequences.lazySet(slot, position + capacity);
+                position++;
+                drained++;
+                handler.onRecord(link, arrivalTime, sendTime, srcDpid, egressPort, sequence);
+            }
+        } finally {
+            head = position;
+        }
+        return drained;
+    }
+
+    /**
+     * @return the number of records waiting for the consumer
+     */
+    public int getBacklog() {
+        return (int) Math.max(0L, tail.get() - head);
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public interface RecordHandler {
+        void onRecord(int link, long arrivalTime, long sendTime, long srcDpid, long egressPort, long sequence);
+    }
+}
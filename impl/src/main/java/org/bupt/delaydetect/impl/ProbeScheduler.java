@@ -0,0 +1,201 @@
+/*
+ * Copyright © 2017 bupt.dtj and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.bupt.delaydetect.impl;
+
+import org.bupt.delaydetect.impl.util.InventoryReader;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.packet.delaydetect.config.rev181107.DelaydetectConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ProbeScheduler splits the switches of the inventory across a fixed number
+ * of shards. Every shard is probed by its own periodic task, so rounds of
+ * different shards run in parallel on the provider's executor.
+ */
+public class ProbeScheduler {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ProbeScheduler.class);
+    private final DelaydetectConfig delaydetectConfig;
+    private final InventoryReader inventoryReader;
+    private final ScheduledExecutorService service;
+    private final int shardCount;
+    private final List<Runnable> shardTasks = new ArrayList<>();
+    private final List<ScheduledFuture<?>> scheduledTasks = new ArrayList<>();
+    // one-shot round continuations, cancelled on close
+    private final List<ScheduledFuture<?>> continuations = new ArrayList<>();
+    private boolean closed;
+
+    // Index: shard, Value: switch ids probed by this shard
+    private volatile List<List<String>> shards;
+    private Set<String> assignedNodes = Collections.emptySet();
+    private final List<SwitchRemovalListener> removalListeners = new CopyOnWriteArrayList<>();
+
+    public ProbeScheduler(DelaydetectConfig delaydetectConfig, InventoryReader inventoryReader,
+                          ScheduledExecutorService service, int shardCount) {
+        this.delaydetectConfig = delaydetectConfig;
+        this.inventoryReader = inventoryReader;
+        this.service = service;
+        this.shardCount = Math.max(1, shardCount);
+        List<List<String>> emptyShards = new ArrayList<>(this.shardCount);
+        for (int i = 0; i < this.shardCount; i++) {
+            emptyShards.add(Collections.<String>emptyList());
+        }
+        this.shards = emptyShards;
+    }
+
+    public int getShardCount() {
+        return shardCount;
+    }
+
+    /**
+     * Registers the task probing the next shard. Must be called
+     * {@link #getShardCount()} times before {@link #start()}.
+     *
+     * @param shardTask
+     *            The task running one probing round of its shard.
+     */
+    public void addShard(Runnable shardTask) {
+        shardTasks.add(shardTask);
+    }
+
+    /**
+     * Registers a listener told about every switch that left the inventory
+     * from the next rebalance on.
+     */
+    public void addSwitchRemovalListener(SwitchRemovalListener removalListener) {
+        removalListeners.add(removalListener);
+    }
+
+    /**
+     * Returns the switches currently assigned to the specified shard.
+     *
+     * @param shard
+     *            The shard index.
+     * @return the switch ids of the shard
+     */
+    public List<String> getShard(int shard) {
+        return shards.get(shard);
+    }
+
+    /**
+     * Schedules the rebalancing task and one round task per shard. Shard
+     * rounds are staggered across the probing period.
+     */
+    public synchronized void start() {
+        long period = getPeriod();
+        rebalance();
+        scheduledTasks.add(service.scheduleWithFixedDelay(new Rebalancer(), period, period, TimeUnit.MILLISECONDS));
+        for (int shard = 0; shard < shardTasks.size(); shard++) {
+            long initialDelay = period + period * shard / shardTasks.size();
+            scheduledTasks.add(service.scheduleAtFixedRate(shardTasks.get(shard), initialDelay, period,
+                    TimeUnit.MILLISECONDS));
+        }
+        LOG.info("Probing {} shards every {} ms", shardTasks.size(), period);
+    }
+
+    /**
+     * Runs a one-shot task on the probing executor after the specified delay.
+     * Nothing is scheduled once the scheduler is closed.
+     */
+    public synchronized void schedule(Runnable task, long delayNanos) {
+        if (closed) {
+            return;
+        }
+        Iterator<ScheduledFuture<?>> iterator = continuations.iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().isDone()) {
+                iterator.remove();
+            }
+        }
+        continuations.add(service.schedule(task, delayNanos, TimeUnit.NANOSECONDS));
+    }
+
+    public synchronized void close() {
+        closed = true;
+        for (ScheduledFuture<?> scheduledTask : scheduledTasks) {
+            scheduledTask.cancel(false);
+        }
+        scheduledTasks.clear();
+        for (ScheduledFuture<?> continuation : continuations) {
+            continuation.cancel(false);
+        }
+        continuations.clear();
+    }
+
+    /**
+     * Deals the switches of the inventory round-robin across the shards if
+     * switches joined or left since the last assignment.
+     */
+    synchronized void rebalance() {
+        Set<String> nodeIds = inventoryReader.getControllerSwitchConnectors().keySet();
+        if (assignedNodes.size() == nodeIds.size() && assignedNodes.containsAll(nodeIds)) {
+            return;
+        }
+        List<String> sortedNodeIds = new ArrayList<>(nodeIds);
+        Collections.sort(sortedNodeIds);
+        List<List<String>> newShards = new ArrayList<>(shardCount);
+        for (int i = 0; i < shardCount; i++) {
+            newShards.add(new ArrayList<String>(sortedNodeIds.size() / shardCount + 1));
+        }
+        for (int i = 0; i < sortedNodeIds.size(); i++) {
+            newShards.get(i % shardCount).add(sortedNodeIds.get(i));
+        }
+        shards = newShards;
+        for (String nodeId : assignedNodes) {
+            if (!nodeIds.contains(nodeId)) {
+                for (SwitchRemovalListener removalListener : removalListeners) {
+                    removalListener.onSwitchRemoved(nodeId);
+                }
+            }
+        }
+        assignedNodes = new HashSet<>(sortedNodeIds);
+        LOG.debug("Rebalanced {} switches across {} shards", sortedNodeIds.size(), shardCount);
+    }
+
+    /**
+     * @return the probing period of a shard in milliseconds
+     */
+    public long getPeriod() {
+        long period = delaydetectConfig.getQuerryDelay() * 100L;
+        if (delaydetectConfig.isAdaptiveProbing()) {
+            // stable links are only flooded at the adaptive floor
+            period = Math.max(period, delaydetectConfig.getAdaptiveMaxInterval());
+        }
+        return Math.max(1L, period);
+    }
+
+    /**
+     * Drops the per-switch state of switches that left the inventory.
+     */
+    public interface SwitchRemovalListener {
+        void onSwitchRemoved(String nodeId);
+    }
+
+    private class Rebalancer implements Runnable {
+
+        @Override
+        public void run() {
+            try {
+                rebalance();
+            } catch (RuntimeException e) {
+                LOG.warn("Failed to rebalance probe shards", e);
+            }
+        }
+    }
+}
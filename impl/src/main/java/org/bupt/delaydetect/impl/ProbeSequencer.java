@@ -0,0 +1,87 @@
+/*
+ * Copyright © 2017 bupt.dtj and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.bupt.delaydetect.impl;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * ProbeSequencer numbers the flood rounds of every switch and remembers when
+ * the last few rounds were sent. It is the outstanding-probe table of the
+ * loss accounting: a sequence number sent longer ago than the probe timeout
+ * and not received on a link counts as lost for that link.
+ */
+public class ProbeSequencer {
+
+    private static final int HISTORY = 8;
+
+    // Key: SwitchId, Value: the recent rounds of this switch
+    private final Map<String, SwitchRounds> switchRounds = new ConcurrentHashMap<>();
+
+    /**
+     * Assigns the next sequence number of a switch.
+     *
+     * @param nodeId
+     *            The switch id.
+     * @param sendTime
+     *            The send time in nanoseconds.
+     * @return the sequence number, never 0
+     */
+    public long next(String nodeId, long sendTime) {
+        SwitchRounds rounds = switchRounds.get(nodeId);
+        if (rounds == null) {
+            rounds = new SwitchRounds();
+            SwitchRounds existing = switchRounds.putIfAbsent(nodeId, rounds);
+            if (existing != null) {
+                rounds = existing;
+            }
+        }
+        return rounds.next(sendTime);
+    }
+
+    /**
+     * Returns the highest sequence number of a switch sent at or before the
+     * specified time.
+     *
+     * @param nodeId
+     *            The switch id.
+     * @param sentBefore
+     *            The time in nanoseconds.
+     * @return the sequence number, 0 if none
+     */
+    public long getTimedOut(String nodeId, long sentBefore) {
+        SwitchRounds rounds = switchRounds.get(nodeId);
+        return rounds == null ? 0 : rounds.getTimedOut(sentBefore);
+    }
+
+    public void remove(String nodeId) {
+        switchRounds.remove(nodeId);
+    }
+
+    private static class SwitchRounds {
+        private final long[] sendTimes = new long[HISTORY];
+        private long sequence;
+
+        synchronized long next(long sendTime) {
+            // sequence numbers are 32 bits on the wire, 0 marks an unsequenced probe
+            sequence = sequence % 0xFFFFFFFFL + 1;
+            sendTimes[(int) (sequence % HISTORY)] = sendTime;
+            return sequence;
+        }
+
+        synchronized long getTimedOut(long sentBefore) {
+            for (long candidate = sequence; candidate > 0 && candidate > sequence - HISTORY; candidate--) {
+                if (sendTimes[(int) (candidate % HISTORY)] - sentBefore <= 0) {
+                    return candidate;
+                }
+            }
+            // all remembered rounds are recent; older ones have certainly timed out
+            return Math.max(0, sequence - HISTORY);
+        }
+    }
+}
@@ -8,6 +8,10 @@
 package org.bupt.delaydetect.impl.util;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 import org.opendaylight.controller.md.sal.binding.api.DataBroker;
 import org.opendaylight.controller.md.sal.binding.api.DataChangeListener;
 import org.opendaylight.controller.md.sal.common.api.data.AsyncDataBroker;
@@ -43,8 +47,24 @@ import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.types.rev131026.instru
 import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.types.rev131026.instruction.instruction.apply.actions._case.ApplyActionsBuilder;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.types.rev131026.instruction.list.Instruction;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.types.rev131026.instruction.list.InstructionBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.group.service.rev130918.AddGroupInputBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.group.service.rev130918.SalGroupService;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.group.service.rev130918.UpdateGroupInputBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.group.service.rev130918.group.update.OriginalGroupBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.group.service.rev130918.group.update.UpdatedGroupBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.group.types.rev131018.BucketId;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.group.types.rev131018.GroupId;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.group.types.rev131018.GroupTypes;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.group.types.rev131018.group.Buckets;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.group.types.rev131018.group.BucketsBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.group.types.rev131018.group.buckets.Bucket;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.group.types.rev131018.group.buckets.BucketBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.NodeConnectorRef;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.NodeId;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.NodeRef;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.Nodes;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.node.NodeConnector;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.node.NodeConnectorKey;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.nodes.Node;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.nodes.NodeKey;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.l2.types.rev130827.EtherType;
@@ -63,8 +83,12 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
@@ -74,14 +98,22 @@ public class InitialFlowWriter implements DataChangeListener {
     private static final Logger LOG = LoggerFactory.getLogger(InitialFlowWriter.class);
     private final ExecutorService initialFlowExecutor = Executors.newCachedThreadPool();
     private final SalFlowService salFlowService;
+    private SalGroupService salGroupService;
     private final String FLOW_ID_PREFIX = "Delaydetect-";
     private final short DEFAULT_FLOW_TABLE_ID = 0;
     private final int DEFAULT_FLOW_PRIORITY = 10;
     private final int DEFAULT_FLOW_IDLE_TIMEOUT = 0;
     private final int DEFAULT_FLOW_HARD_TIMEOUT = 0;
+    private final long PROBE_GROUP_ID = 0x2b000001L;
 
     private AtomicLong flowIdInc = new AtomicLong();
     private AtomicLong flowCookieInc = new AtomicLong(0x2b00000000000000L);
+    // Key: SwitchId, Value: ports of the probe group confirmed installed on this switch
+    private final Map<String, List<NodeConnectorRef>> probeGroups = new ConcurrentHashMap<>();
+    // Key: SwitchId, Value: the add or update of the probe group in flight for this switch
+    private final Map<String, GroupRequest> pendingProbeGroups = new ConcurrentHashMap<>();
+    // switches whose probe group may exist although its last add or update failed
+    private final Set<String> uncertainProbeGroups = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
     private short flowTableId;
     private int flowPriority;
     private int flowIdleTimeout;
@@ -91,6 +123,10 @@ public class InitialFlowWriter implements DataChangeListener {
         this.salFlowService = salFlowService;
     }
 
+    public void setSalGroupService(SalGroupService salGroupService) {
+        this.salGroupService = salGroupService;
+    }
+
     public void setFlowTableId(short flowTableId) {
         this.flowTableId = flowTableId;
     }
@@ -113,6 +149,101 @@ public class InitialFlowWriter implements DataChangeListener {
         return dataBroker.registerDataChangeListener(LogicalDatastoreType.OPERATIONAL, nodeInstanceIdentifier, this, AsyncDataBroker.DataChangeScope.BASE);
     }
 
+    public long getProbeGroupId() {
+        return PROBE_GROUP_ID;
+    }
+
+    /**
+     * Makes sure the specified switch has an ALL group replicating probes to
+     * the specified ports. The group is added the first time and updated when
+     * the ports of the switch change; it only counts as installed once the
+     * switch has confirmed the request. After a failed request the next call
+     * tries again, with an update if the group may already exist.
+     *
+     * @param nodeId
+     *            The switch id.
+     * @param nodeConnectors
+     *            The ports the probe is replicated to.
+     * @return true if the group is confirmed installed with these ports
+     */
+    public boolean ensureProbeGroup(String nodeId, List<NodeConnectorRef> nodeConnectors) {
+        List<NodeConnectorRef> installed = probeGroups.get(nodeId);
+        if (nodeConnectors.equals(installed)) {
+            return true;
+        }
+        List<NodeConnectorRef> ports = ImmutableList.copyOf(nodeConnectors);
+        GroupRequest request = new GroupRequest(nodeId, ports);
+        if (pendingProbeGroups.putIfAbsent(nodeId, request) != null) {
+            return false;
+        }
+        NodeRef nodeRef = new NodeRef(InstanceIdentifier.builder(Nodes.class)
+                .child(Node.class, new NodeKey(new NodeId(nodeId))).build());
+        Future<? extends RpcResult<?>> result;
+        if (installed == null && !uncertainProbeGroups.contains(nodeId)) {
+            LOG.trace("Adding probe group to node {}", nodeId);
+            result = salGroupService.addGroup(new AddGroupInputBuilder()
+                    .setNode(nodeRef)
+                    .setGroupId(new GroupId(PROBE_GROUP_ID))
+                    .setGroupType(GroupTypes.GroupAll)
+                    .setGroupName("probe")
+                    .setBuckets(createProbeBuckets(ports))
+                    .build());
+        } else {
+            LOG.trace("Updating probe group on node {}", nodeId);
+            request.update = true;
+            result = salGroupService.updateGroup(new UpdateGroupInputBuilder()
+                    .setNode(nodeRef)
+                    .setOriginalGroup(new OriginalGroupBuilder()
+                            .setGroupId(new GroupId(PROBE_GROUP_ID))
+                            .setGroupType(GroupTypes.GroupAll)
+                            .setBuckets(createProbeBuckets(installed == null ? ports : installed))
+                            .build())
+                    .setUpdatedGroup(new UpdatedGroupBuilder()
+                            .setGroupId(new GroupId(PROBE_GROUP_ID))
+                            .setGroupType(GroupTypes.GroupAll)
+                            .setGroupName("probe")
+                            .setBuckets(createProbeBuckets(ports))
+                            .build())
+                    .build());
+        }
+        if (result instanceof ListenableFuture) {
+            Futures.addCallback((ListenableFuture<? extends RpcResult<?>>) result, request,
+                    MoreExecutors.directExecutor());
+        } else {
+            // without a callback the group is never confirmed and probes stay flooded per port
+            LOG.debug("Probe group request to node {} cannot be confirmed", nodeId);
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the probe group of the specified switch is confirmed
+     *         installed with the specified ports
+     */
+    public boolean isProbeGroupInstalled(String nodeId, List<NodeConnectorRef> nodeConnectors) {
+        return nodeConnectors.equals(probeGroups.get(nodeId));
+    }
+
+    private Buckets createProbeBuckets(List<NodeConnectorRef> nodeConnectors) {
+        List<Bucket> buckets = new ArrayList<>(nodeConnectors.size());
+        long bucketId = 0;
+        for (NodeConnectorRef ncRef : nodeConnectors) {
+            String ncId = ncRef.getValue().firstKeyOf(NodeConnector.class, NodeConnectorKey.class).getId().getValue();
+            OutputActionBuilder output = new OutputActionBuilder()
+                    .setMaxLength(0xffff)
+                    .setOutputNodeConnector(new Uri(ncId));
+            Action outputAction = new ActionBuilder()
+                    .setOrder(0)
+                    .setAction(new OutputActionCaseBuilder().setOutputAction(output.build()).build())
+                    .build();
+            buckets.add(new BucketBuilder()
+                    .setBucketId(new BucketId(bucketId++))
+                    .setAction(ImmutableList.of(outputAction))
+                    .build());
+        }
+        return new BucketsBuilder().setBucket(buckets).build();
+    }
+
     @Override
     public void onDataChanged(AsyncDataChangeEvent<InstanceIdentifier<?>, DataObject> instanceIdentifierDataObjectAsyncDataChangeEvent) {
         Map<InstanceIdentifier<?>, DataObject> createdData = instanceIdentifierDataObjectAsyncDataChangeEvent.getCreatedData();
@@ -124,6 +255,52 @@ public class InitialFlowWriter implements DataChangeListener {
         }
     }
 
+    /**
+     * An add or update of the probe group of a switch, recorded as installed
+     * only when the switch confirms it.
+     */
+    private class GroupRequest implements FutureCallback<RpcResult<?>> {
+        private final String nodeId;
+        private final List<NodeConnectorRef> ports;
+        private volatile boolean update;
+
+        GroupRequest(String nodeId, List<NodeConnectorRef> ports) {
+            this.nodeId = nodeId;
+            this.ports = ports;
+        }
+
+        @Override
+        public void onSuccess(RpcResult<?> rpcResult) {
+            if (rpcResult == null || !rpcResult.isSuccessful()) {
+                onFailed(rpcResult == null ? null : rpcResult.getErrors(), null);
+                return;
+            }
+            if (pendingProbeGroups.remove(nodeId, this)) {
+                uncertainProbeGroups.remove(nodeId);
+                probeGroups.put(nodeId, ports);
+            }
+        }
+
+        @Override
+        public void onFailure(Throwable throwable) {
+            onFailed(null, throwable);
+        }
+
+        private void onFailed(Object errors, Throwable throwable) {
+            if (!pendingProbeGroups.remove(nodeId, this)) {
+                return;
+            }
+            probeGroups.remove(nodeId);
+            // a failed add may mean the group already exists, a failed update that it does not
+            if (update) {
+                uncertainProbeGroups.remove(nodeId);
+            } else {
+                uncertainProbeGroups.add(nodeId);
+            }
+            LOG.debug("Probe group request to node {} failed: {}", nodeId, errors, throwable);
+        }
+    }
+
     /**
      * A private class to process the node updated event in separate thread. Allows to release the
      * thread that invoked the data node updated event. Avoids any thread lock it may cause.
@@ -145,7 +322,12 @@ public class InitialFlowWriter implements DataChangeListener {
             for (InstanceIdentifier<?> nodeId : nodeIds) {
                 if (Node.class.isAssignableFrom(nodeId.getTargetType())) {
                     InstanceIdentifier<Node> invNodeId = (InstanceIdentifier<Node>) nodeId;
-                    if (invNodeId.firstKeyOf(Node.class, NodeKey.class).getId().getValue().contains("openflow:")) {
+                    String switchId = invNodeId.firstKeyOf(Node.class, NodeKey.class).getId().getValue();
+                    if (switchId.contains("openflow:")) {
+                        // a reconnected switch has lost its groups
+                        probeGroups.remove(switchId);
+                        pendingProbeGroups.remove(switchId);
+                        uncertainProbeGroups.remove(switchId);
                         addInitialFlows(invNodeId);
                     }
                 }
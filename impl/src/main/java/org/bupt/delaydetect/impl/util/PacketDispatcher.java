@@ -7,8 +7,13 @@
  */
 package org.bupt.delaydetect.impl.util;
 
+import com.google.common.collect.ImmutableList;
 import java.util.List;
 import org.opendaylight.yang.gen.v1.urn.ietf.params.xml.ns.yang.ietf.yang.types.rev130715.MacAddress;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.action.types.rev131112.action.action.GroupActionCaseBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.action.types.rev131112.action.action.group.action._case.GroupActionBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.action.types.rev131112.action.list.Action;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.action.types.rev131112.action.list.ActionBuilder;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.NodeConnectorRef;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.NodeRef;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.node.NodeConnector;
@@ -30,6 +35,7 @@ public class PacketDispatcher {
     private final static Logger LOG = LoggerFactory.getLogger(org.opendaylight.l2switch.arphandler.core.PacketDispatcher.class);
     private InventoryReader inventoryReader;
     private PacketProcessingService packetProcessingService;
+    private InitialFlowWriter probeGroupWriter;
 
     public void setPacketProcessingService(PacketProcessingService packetProcessingService) {
         this.packetProcessingService = packetProcessingService;
@@ -39,6 +45,14 @@ public class PacketDispatcher {
         this.inventoryReader = inventoryReader;
     }
 
+    /**
+     * Enables flooding probes through a per-switch ALL group installed by the
+     * specified writer, instead of one packet-out per port.
+     */
+    public void setProbeGroupWriter(InitialFlowWriter probeGroupWriter) {
+        this.probeGroupWriter = probeGroupWriter;
+    }
+
     /**
      * Dispatches the packet in the appropriate way - flood or unicast.
      *
@@ -108,6 +122,90 @@ public class PacketDispatcher {
         }
     }
 
+    /**
+     * Floods a probe out of all ports of a switch. With a probe group writer
+     * the switch replicates a single packet-out through its ALL group;
+     * while the group is being installed or updated the probe is flooded
+     * port by port.
+     *
+     * @param nodeId
+     *            The switch id.
+     * @param payload
+     *            The probe to be sent.
+     * @param controllerNodeConnector
+     *            The NodeConnector between controller and switch.
+     */
+    public void floodProbe(String nodeId, byte[] payload, NodeConnectorRef controllerNodeConnector) {
+        if (probeGroupWriter == null) {
+            floodPacket(nodeId, payload, controllerNodeConnector, null);
+            return;
+        }
+        List<NodeConnectorRef> nodeConnectors = inventoryReader.getSwitchNodeConnectors().get(nodeId);
+        if (nodeConnectors == null) {
+            LOG.info("Cannot flood probe, as inventory doesn't have any node connectors for node {}", nodeId);
+            return;
+        }
+        if (!probeGroupWriter.ensureProbeGroup(nodeId, nodeConnectors)) {
+            floodPacket(nodeId, payload, controllerNodeConnector, null);
+            return;
+        }
+        Action groupAction = new ActionBuilder()
+                .setOrder(0)
+                .setAction(new GroupActionCaseBuilder()
+                        .setGroupAction(new GroupActionBuilder()
+                                .setGroupId(probeGroupWriter.getProbeGroupId())
+                                .build())
+                        .build())
+                .build();
+        TransmitPacketInput input = new TransmitPacketInputBuilder() //
+                .setPayload(payload) //
+                .setNode(new NodeRef(getNodePath(controllerNodeConnector.getValue()))) //
+                .setEgress(controllerNodeConnector) //
+                .setIngress(controllerNodeConnector) //
+                .setAction(ImmutableList.of(groupAction)) //
+                .build();
+        packetProcessingService.transmitPacket(input);
+    }
+
+    /**
+     * Sends a probe out of a single port, e.g. to re-measure one link.
+     *
+     * @param payload
+     *            The probe to be sent.
+     * @param egress
+     *            The NodeConnector of the link to be probed.
+     * @return false if the controller node connector of the switch is unknown
+     */
+    public boolean probeLink(byte[] payload, NodeConnectorRef egress) {
+        String nodeId = egress.getValue().firstKeyOf(Node.class, NodeKey.class).getId().getValue();
+        NodeConnectorRef controllerNodeConnector = inventoryReader.getControllerSwitchConnectors().get(nodeId);
+        if (controllerNodeConnector == null) {
+            LOG.debug("Cannot probe link, as controller node connector is not available for node {}.", nodeId);
+            return false;
+        }
+        sendPacketOut(payload, controllerNodeConnector, egress);
+        return true;
+    }
+
+    /**
+     * Returns the number of packet-outs {@link #floodProbe} sends for the
+     * specified switch.
+     *
+     * @param nodeId
+     *            The switch id.
+     * @return the number of packet-outs per flood
+     */
+    public int getFloodPacketCount(String nodeId) {
+        List<NodeConnectorRef> nodeConnectors = inventoryReader.getSwitchNodeConnectors().get(nodeId);
+        if (nodeConnectors == null) {
+            return 0;
+        }
+        if (probeGroupWriter != null && probeGroupWriter.isProbeGroupInstalled(nodeId, nodeConnectors)) {
+            return 1;
+        }
+        return nodeConnectors.size();
+    }
+
     /**
      * Sends the specified packet on the specified port.
      *
@@ -0,0 +1,171 @@
+/*
+ * Copyright © 2017 bupt.dtj and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.bupt.delaydetect.impl.util;
+
+import org.opendaylight.yang.gen.v1.urn.opendaylight.packet.ipv4.rev140528.KnownIpProtocols;
+
+import java.nio.ByteBuffer;
+
+/**
+ * ProbeCodec writes and reads the fixed Ethernet + IPv4 layout of a probe
+ * frame at absolute offsets, without the field maps of {@link IPv4}.
+ *
+ * <p>The frame is a 14 byte Ethernet header followed by a 44 byte IPv4
+ * header whose 24 option bytes hold the send time (0-7), the source dpid
+ * (8-15), the egress port number of a probe sent out of a single port
+ * (16-19, 0 when flooded) and the round sequence number of the source switch
+ * (20-23, 0 for unsequenced probes). Rewriting a field updates the header
+ * checksum incrementally (RFC 1624).
+ */
+public final class ProbeCodec {
+
+    public static final int IPV4_OFFSET = 14;
+    public static final int OPTION_LENGTH = 24;
+    public static final int IPV4_HEADER_LENGTH = 20 + OPTION_LENGTH;
+    public static final int FRAME_LENGTH = IPV4_OFFSET + IPV4_HEADER_LENGTH;
+
+    private static final int DEST_MAC_OFFSET = 0;
+    private static final int SRC_MAC_OFFSET = 6;
+    private static final int ETHER_TYPE_OFFSET = 12;
+    private static final int VERSION_OFFSET = IPV4_OFFSET;
+    private static final int TOTAL_LENGTH_OFFSET = IPV4_OFFSET + 2;
+    private static final int IDENTIFICATION_OFFSET = IPV4_OFFSET + 4;
+    private static final int FLAGS_OFFSET = IPV4_OFFSET + 6;
+    private static final int TTL_OFFSET = IPV4_OFFSET + 8;
+    private static final int PROTOCOL_OFFSET = IPV4_OFFSET + 9;
+    private static final int CHECKSUM_OFFSET = IPV4_OFFSET + 10;
+    private static final int SRC_IP_OFFSET = IPV4_OFFSET + 12;
+    private static final int DEST_IP_OFFSET = IPV4_OFFSET + 16;
+    private static final int SEND_TIME_OFFSET = IPV4_OFFSET + 20;
+    private static final int SRC_DPID_OFFSET = SEND_TIME_OFFSET + 8;
+    private static final int EGRESS_PORT_OFFSET = SEND_TIME_OFFSET + 16;
+    private static final int SEQUENCE_OFFSET = SEND_TIME_OFFSET + 20;
+
+    private static final short ETHER_TYPE_IPV4 = 0x0800;
+    private static final byte VERSION_IHL = (byte) (0x40 | IPV4_HEADER_LENGTH / 4);
+    private static final short FLAGS_DONT_FRAGMENT = 0x4000;
+    private static final byte PROTOCOL = (byte) KnownIpProtocols.Experimentation1.getIntValue();
+    private static final long SRC_MAC = 0x0000000000eeL;
+    private static final long DEST_MAC = 0x0000000000efL;
+    private static final int SRC_IP = 0x00000001;
+    private static final int DEST_IP = 0x00000002;
+
+    private ProbeCodec() {
+    }
+
+    /**
+     * Writes a complete probe frame of the specified switch with a zero send
+     * time, egress port and sequence number.
+     *
+     * @param frame
+     *            A buffer of at least {@link #FRAME_LENGTH} bytes.
+     * @param srcDpid
+     *            The dpid of the switch the probe is sent from.
+     */
+    public static void writeFrame(ByteBuffer frame, long srcDpid) {
+        writeMac(frame, DEST_MAC_OFFSET, DEST_MAC);
+        writeMac(frame, SRC_MAC_OFFSET, SRC_MAC);
+        frame.putShort(ETHER_TYPE_OFFSET, ETHER_TYPE_IPV4);
+        frame.put(VERSION_OFFSET, VERSION_IHL);
+        frame.put(VERSION_OFFSET + 1, (byte) 0);
+        frame.putShort(TOTAL_LENGTH_OFFSET, (short) IPV4_HEADER_LENGTH);
+        frame.putShort(IDENTIFICATION_OFFSET, (short) 0);
+        frame.putShort(FLAGS_OFFSET, FLAGS_DONT_FRAGMENT);
+        frame.put(TTL_OFFSET, (byte) 1);
+        frame.put(PROTOCOL_OFFSET, PROTOCOL);
+        frame.putShort(CHECKSUM_OFFSET, (short) 0);
+        frame.putInt(SRC_IP_OFFSET, SRC_IP);
+        frame.putInt(DEST_IP_OFFSET, DEST_IP);
+        frame.putLong(SEND_TIME_OFFSET, 0L);
+        frame.putLong(SRC_DPID_OFFSET, srcDpid);
+        frame.putInt(EGRESS_PORT_OFFSET, 0);
+        frame.putInt(SEQUENCE_OFFSET, 0);
+        frame.putShort(CHECKSUM_OFFSET, computeChecksum(frame));
+    }
+
+    /**
+     * Overwrites the send time and updates the checksum incrementally.
+     */
+    public static void writeSendTime(ByteBuffer frame, long sendTime) {
+        writeLong(frame, SEND_TIME_OFFSET, sendTime);
+    }
+
+    /**
+     * Overwrites the egress port number and updates the checksum incrementally.
+     */
+    public static void writeEgressPort(ByteBuffer frame, long portNumber) {
+        writeInt(frame, EGRESS_PORT_OFFSET, (int) portNumber);
+    }
+
+    /**
+     * Overwrites the sequence number and updates the checksum incrementally.
+     */
+    public static void writeSequence(ByteBuffer frame, long sequence) {
+        writeInt(frame, SEQUENCE_OFFSET, (int) sequence);
+    }
+
+    /**
+     * Checks in a few comparisons whether a frame is a probe.
+     */
+    public static boolean isProbe(ByteBuffer frame) {
+        return frame.limit() >= FRAME_LENGTH
+                && frame.getShort(ETHER_TYPE_OFFSET) == ETHER_TYPE_IPV4
+                && frame.get(PROTOCOL_OFFSET) == PROTOCOL
+                && frame.get(VERSION_OFFSET) == VERSION_IHL
+                && frame.getInt(SRC_MAC_OFFSET + 2) == (int) SRC_MAC
+                && frame.getInt(DEST_MAC_OFFSET + 2) == (int) DEST_MAC;
+    }
+
+    public static long readSendTime(ByteBuffer frame) {
+        return frame.getLong(SEND_TIME_OFFSET);
+    }
+
+    public static long readSrcDpid(ByteBuffer frame) {
+        return frame.getLong(SRC_DPID_OFFSET);
+    }
+
+    public static long readEgressPort(ByteBuffer frame) {
+        return frame.getInt(EGRESS_PORT_OFFSET) & 0xFFFFFFFFL;
+    }
+
+    public static long readSequence(ByteBuffer frame) {
+        return frame.getInt(SEQUENCE_OFFSET) & 0xFFFFFFFFL;
+    }
+
+    private static void writeMac(ByteBuffer frame, int offset, long mac) {
+        frame.putShort(offset, (short) (mac >>> 32));
+        frame.putInt(offset + 2, (int) mac);
+    }
+
+    private static void writeLong(ByteBuffer frame, int offset, long value) {
+        writeInt(frame, offset, (int) (value >>> 32));
+        writeInt(frame, offset + 4, (int) value);
+    }
+
+    private static void writeInt(ByteBuffer frame, int offset, int value) {
+        int oldValue = frame.getInt(offset);
+        frame.putInt(offset, value);
+        // HC' = ~(~HC + ~m + m') for every changed 16-bit word
+        int sum = ~frame.getShort(CHECKSUM_OFFSET) & 0xFFFF;
+        sum += (~oldValue >>> 16 & 0xFFFF) + (value >>> 16 & 0xFFFF);
+        sum += (~oldValue & 0xFFFF) + (value & 0xFFFF);
+        sum = (sum & 0xFFFF) + (sum >>> 16);
+        sum += sum >>> 16;
+        frame.putShort(CHECKSUM_OFFSET, (short) ~sum);
+    }
+
+    private static short computeChecksum(ByteBuffer frame) {
+        int sum = 0;
+        for (int i = IPV4_OFFSET; i < IPV4_OFFSET + IPV4_HEADER_LENGTH; i += 2) {
+            sum += frame.getShort(i) & 0xFFFF;
+        }
+        sum = (sum & 0xFFFF) + (sum >>> 16);
+        sum += sum >>> 16;
+        return (short) ~sum;
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright © 2017 bupt.dtj and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.bupt.delaydetect.impl.util;
+
+import org.opendaylight.controller.liblldp.BitBufferHelper;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.echo.service.rev150305.SendEchoInput;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.echo.service.rev150305.SendEchoInputBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.NodeId;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.NodeRef;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.Nodes;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.nodes.Node;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.nodes.NodeKey;
+import org.opendaylight.yangtools.yang.binding.InstanceIdentifier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * ProbeTemplateCache keeps one pre-serialized probe frame per switch.
+ * The frame is written once by {@link ProbeCodec}; every probe afterwards
+ * is a copy of it with only the send time option overwritten and the IPv4
+ * header checksum updated incrementally.
+ */
+public class ProbeTemplateCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ProbeTemplateCache.class);
+    private static final Function<String, ProbeTemplate> TEMPLATE_BUILDER = new Function<String, ProbeTemplate>() {
+        @Override
+        public ProbeTemplate apply(String nodeId) {
+            LOG.debug("Built probe template for node {}", nodeId);
+            return new ProbeTemplate(nodeId);
+        }
+    };
+
+    // Key: SwitchId, Value: the probe template of this switch
+    private final Map<String, ProbeTemplate> templates = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the template of the specified switch, serializing it on first use.
+     *
+     * @param nodeId
+     *            The switch id, e.g. "openflow:1".
+     * @return the cached template
+     */
+    public ProbeTemplate getTemplate(String nodeId) {
+        ProbeTemplate template = templates.get(nodeId);
+        if (template == null) {
+            // callers on several threads may miss at once, only one of them builds the template
+            template = templates.computeIfAbsent(nodeId, TEMPLATE_BUILDER);
+        }
+        return template;
+    }
+
+    /**
+     * Drops the templates of switches that are no longer in the inventory.
+     *
+     * @param liveNodeIds
+     *            The switch ids currently reported by the InventoryReader.
+     */
+    public void retainNodes(Set<String> liveNodeIds) {
+        templates.keySet().retainAll(liveNodeIds);
+    }
+
+    /**
+     * Drops the template of the specified switch.
+     */
+    public void remove(String nodeId) {
+        templates.remove(nodeId);
+    }
+
+    private static long dpidOf(String nodeId) {
+        // dpids are unsigned 64-bit, the upper half does not fit a signed long
+        return Long.parseUnsignedLong(nodeId.substring(nodeId.indexOf(':') + 1));
+    }
+
+    /**
+     * The serialized probe frame and the echo request of one switch.
+     */
+    public static class ProbeTemplate {
+        private final ByteBuffer frame;
+        private final NodeRef nodeRef;
+        private final SendEchoInput sendEchoInput;
+
+        ProbeTemplate(String nodeId) {
+            this.frame = ByteBuffer.allocate(ProbeCodec.FRAME_LENGTH);
+            ProbeCodec.writeFrame(frame, dpidOf(nodeId));
+            InstanceIdentifier<Node> nodeInstanceId = InstanceIdentifier.builder(Nodes.class)
+                    .child(Node.class, new NodeKey(new NodeId(nodeId))).build();
+            this.nodeRef = new NodeRef(nodeInstanceId);
+            this.sendEchoInput = new SendEchoInputBuilder()
+                    .setData(BitBufferHelper.toByteArray(dpidOf(nodeId)))
+                    .setNode(nodeRef).build();
+        }
+
+        /**
+         * Returns a copy of the frame carrying the send time and the round
+         * sequence number, with the IPv4 header checksum updated. The copy is
+         * handed to an asynchronous packet-out, so it is never reused.
+         *
+         * @param sendTime
+         *            The send time in nanoseconds.
+         * @param sequence
+         *            The round sequence number of the switch.
+         * @return the serialized frame
+         */
+        public byte[] stamp(long sendTime, long sequence) {
+            ByteBuffer copy = ByteBuffer.wrap(frame.array().clone());
+            ProbeCodec.writeSendTime(copy, sendTime);
+            ProbeCodec.writeSequence(copy, sequence);
+            return copy.array();
+        }
+
+        /**
+         * Returns a copy of the frame carrying the send time and the number
+         * of the port it is sent out of, without a sequence number.
+         *
+         * @param sendTime
+         *            The send time in nanoseconds.
+         * @param portNumber
+         *            The OpenFlow port number of the egress port.
+         * @return the serialized frame
+         */
+        public byte[] stampCopy(long sendTime, long portNumber) {
+            ByteBuffer copy = ByteBuffer.wrap(frame.array().clone());
+            ProbeCodec.writeSendTime(copy, sendTime);
+            ProbeCodec.writeEgressPort(copy, portNumber);
+            ProbeCodec.writeSequence(copy, 0);
+            return copy.array();
+        }
+
+        public NodeRef getNodeRef() {
+            return nodeRef;
+        }
+
+        public SendEchoInput getSendEchoInput() {
+            return sendEchoInput;
+        }
+    }
+}
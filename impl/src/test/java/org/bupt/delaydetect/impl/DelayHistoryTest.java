@@ -0,0 +1,125 @@
+/*
+ * Copyright © 2017 bupt.dtj and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.bupt.delaydetect.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.packet.delaydetect.config.rev181107.DelaydetectConfig;
+
+public class DelayHistoryTest {
+
+    private File directory;
+    private DelaydetectConfig delaydetectConfig;
+    private LinkStore linkStore;
+    private DelayHistory delayHistory;
+    private int link;
+    private int otherLink;
+    private long base;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("delay-history").toFile();
+        delaydetectConfig = mock(DelaydetectConfig.class);
+        when(delaydetectConfig.getHistoryDirectory()).thenReturn(directory.getPath());
+        when(delaydetectConfig.getHistorySegmentSize()).thenReturn(1);
+        when(delaydetectConfig.getHistoryRetention()).thenReturn(24L);
+        linkStore = new LinkStore();
+        delayHistory = new DelayHistory(delaydetectConfig, linkStore);
+        delayHistory.start();
+        link = linkStore.intern("openflow:2:1");
+        otherLink = linkStore.intern("openflow:3:1");
+        base = System.currentTimeMillis();
+    }
+
+    @After
+    public void tearDown() {
+        delayHistory.close();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void testQueryWindowAndLink() {
+        for (int i = 0; i < 100; i++) {
+            delayHistory.append(link, base + i * 100, 1000 + i);
+            delayHistory.append(otherLink, base + i * 100, 5);
+        }
+        awaitRecords(100);
+        List<long[]> records = delayHistory.query(link, base + 2000, base + 2900, 100);
+        assertEquals(10, records.size());
+        assertArrayEquals(new long[]{base + 2000, 1020}, records.get(0));
+        assertArrayEquals(new long[]{base + 2900, 1029}, records.get(9));
+        records = delayHistory.query(link, base, base + 10000, 5);
+        assertEquals(5, records.size());
+        assertArrayEquals(new long[]{base, 1000}, records.get(0));
+    }
+
+    @Test
+    public void testRecordAppendedLateIsFound() {
+        for (int i = 0; i < 100; i++) {
+            delayHistory.append(otherLink, base + i * 100, 5);
+        }
+        // published before the records ahead of it, appended after them
+        delayHistory.append(link, base + 9500, 7);
+        delayHistory.append(link, base + 20000, 8);
+        awaitRecords(2);
+        List<long[]> records = delayHistory.query(link, base + 9000, base + 9600, 10);
+        assertEquals(1, records.size());
+        assertArrayEquals(new long[]{base + 9500, 7}, records.get(0));
+    }
+
+    @Test
+    public void testQuerySeesRecordsWrittenAfterMapping() {
+        delayHistory.append(link, base, 1);
+        awaitRecords(1);
+        delayHistory.append(link, base + 1, 2);
+        awaitRecords(2);
+    }
+
+    @Test
+    public void testRestartKeepsLinkIds() throws IOException {
+        delayHistory.append(otherLink, base, 3);
+        // closing drains the ring
+        delayHistory.close();
+        linkStore = new LinkStore();
+        delayHistory = new DelayHistory(delaydetectConfig, linkStore);
+        delayHistory.start();
+        assertEquals(otherLink, linkStore.indexOf("openflow:3:1"));
+        List<long[]> records = delayHistory.query(otherLink, base, base, 10);
+        assertEquals(1, records.size());
+    }
+
+    /**
+     * Waits for the writer until the link has the expected number of records.
+     */
+    private void awaitRecords(int expected) {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        int found;
+        do {
+            found = delayHistory.query(link, base, Long.MAX_VALUE, 1000).size();
+        } while (found < expected && System.nanoTime() < deadline);
+        assertEquals(expected, found);
+    }
+}
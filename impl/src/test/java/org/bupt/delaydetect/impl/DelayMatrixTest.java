@@ -0,0 +1,157 @@
+/*
+ * Copyright © 2017 bupt.dtj and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.bupt.delaydetect.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Before;
+import org.junit.Test;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.packet.delaydetect.config.rev181107.DelaydetectConfig;
+
+public class DelayMatrixTest {
+
+    private LinkStore linkStore;
+    private DelaySnapshots delaySnapshots;
+    private DelayMatrix delayMatrix;
+
+    @Before
+    public void setUp() {
+        DelaydetectConfig delaydetectConfig = mock(DelaydetectConfig.class);
+        when(delaydetectConfig.getChangeLogSize()).thenReturn(2);
+        linkStore = new LinkStore();
+        delaySnapshots = new DelaySnapshots(delaydetectConfig, linkStore);
+        delayMatrix = new DelayMatrix(linkStore, delaySnapshots);
+    }
+
+    @Test
+    public void testIncreaseReroutes() {
+        // 1 -> 2 -> 3 beats 1 -> 3 until 1 -> 2 gets slow
+        setLink(1, 2, 1, 10);
+        setLink(2, 3, 1, 10);
+        setLink(1, 3, 2, 50);
+        update();
+        assertEquals(20, distance(1, 3));
+        setLink(1, 2, 1, 100);
+        update();
+        assertEquals(50, distance(1, 3));
+        assertEquals(100, distance(1, 2));
+    }
+
+    @Test
+    public void testDecreaseShortensOtherRows() {
+        setLink(1, 2, 1, 10);
+        setLink(2, 3, 1, 10);
+        setLink(3, 4, 1, 10);
+        setLink(2, 4, 2, 100);
+        update();
+        assertEquals(30, distance(1, 4));
+        setLink(2, 4, 2, 5);
+        update();
+        assertEquals(15, distance(1, 4));
+        assertEquals(5, distance(2, 4));
+    }
+
+    @Test
+    public void testMoveAndWithdraw() {
+        int link = setLink(1, 2, 1, 10);
+        setLink(3, 1, 1, 10);
+        update();
+        assertEquals(20, distance(3, 2));
+        // the probes of the link now come from switch 3
+        setLink(3, 2, 1, 10);
+        update();
+        assertEquals(10, distance(3, 2));
+        assertEquals(-1, distance(1, 2));
+        linkStore.clearDelay(link);
+        update();
+        assertEquals(-1, distance(3, 2));
+        assertEquals(10, distance(3, 1));
+    }
+
+    @Test
+    public void testRandomChangesMatchFloydWarshall() {
+        Random random = new Random(42);
+        int switches = 12;
+        for (int step = 0; step < 300; step++) {
+            int changes = 1 + random.nextInt(5);
+            for (int i = 0; i < changes; i++) {
+                int dst = 1 + random.nextInt(switches);
+                int port = 1 + random.nextInt(3);
+                int link = linkStore.intern("openflow:" + dst + ":" + port);
+                if (random.nextInt(6) == 0) {
+                    linkStore.clearDelay(link);
+                } else {
+                    setLink(1 + random.nextInt(switches), dst, port, 1 + random.nextInt(1000));
+                }
+            }
+            // skip some rounds, so the matrix sometimes has to fall back to a full rescan
+            if (random.nextInt(3) > 0) {
+                update();
+                assertMatchesFloydWarshall();
+            } else {
+                delaySnapshots.run();
+            }
+        }
+    }
+
+    private int setLink(int src, int dst, int port, long delay) {
+        int link = linkStore.intern("openflow:" + dst + ":" + port);
+        linkStore.setSource(link, src);
+        linkStore.setDelay(link, delay, System.currentTimeMillis());
+        return link;
+    }
+
+    private void update() {
+        delaySnapshots.run();
+        delayMatrix.run();
+    }
+
+    private long distance(int src, int dst) {
+        long[][] rows = delayMatrix.getRows();
+        return rows[linkStore.indexOfSwitch("openflow:" + src)][linkStore.indexOfSwitch("openflow:" + dst)];
+    }
+
+    private void assertMatchesFloydWarshall() {
+        long[][] rows = delayMatrix.getRows();
+        int size = rows.length;
+        long[][] expected = new long[size][size];
+        for (int i = 0; i < size; i++) {
+            Arrays.fill(expected[i], Long.MAX_VALUE);
+            expected[i][i] = 0;
+        }
+        DelaySnapshot snapshot = delaySnapshots.getSnapshot();
+        for (int position = 0; position < snapshot.size(); position++) {
+            int src = snapshot.getSrcSwitch(position);
+            int dst = linkStore.getDstSwitch(snapshot.getLink(position));
+            expected[src][dst] = Math.min(expected[src][dst], snapshot.getDelay(position));
+        }
+        for (int via = 0; via < size; via++) {
+            for (int i = 0; i < size; i++) {
+                for (int j = 0; j < size; j++) {
+                    if (expected[i][via] != Long.MAX_VALUE && expected[via][j] != Long.MAX_VALUE
+                            && expected[i][via] + expected[via][j] < expected[i][j]) {
+                        expected[i][j] = expected[i][via] + expected[via][j];
+                    }
+                }
+            }
+        }
+        for (int i = 0; i < size; i++) {
+            for (int j = 0; j < size; j++) {
+                if (expected[i][j] == Long.MAX_VALUE) {
+                    expected[i][j] = -1;
+                }
+            }
+            assertArrayEquals("row " + i, expected[i], rows[i]);
+        }
+    }
+}
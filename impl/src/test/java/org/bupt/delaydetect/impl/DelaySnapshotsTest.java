@@ -0,0 +1,100 @@
+/*
+ * Copyright © 2017 bupt.dtj and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.bupt.delaydetect.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.packet.delaydetect.config.rev181107.DelaydetectConfig;
+
+public class DelaySnapshotsTest {
+
+    private LinkStore linkStore;
+    private DelaySnapshots delaySnapshots;
+    private int linkA;
+    private int linkB;
+    private int linkC;
+
+    @Before
+    public void setUp() {
+        DelaydetectConfig delaydetectConfig = mock(DelaydetectConfig.class);
+        when(delaydetectConfig.getChangeLogSize()).thenReturn(2);
+        linkStore = new LinkStore();
+        delaySnapshots = new DelaySnapshots(delaydetectConfig, linkStore);
+        linkA = linkStore.intern("openflow:1:1");
+        linkB = linkStore.intern("openflow:2:1");
+        linkC = linkStore.intern("openflow:3:1");
+        for (int link : new int[]{linkA, linkB, linkC}) {
+            linkStore.setSource(link, 4L);
+        }
+    }
+
+    @Test
+    public void testUnchangedRoundKeepsVersion() {
+        long start = delaySnapshots.getSnapshot().getVersion();
+        setDelay(linkA, 10);
+        delaySnapshots.run();
+        long version = delaySnapshots.getSnapshot().getVersion();
+        assertEquals(start + 1, version);
+        setDelay(linkA, 10);
+        delaySnapshots.run();
+        assertEquals(version, delaySnapshots.getSnapshot().getVersion());
+        assertArrayEquals(new int[]{linkA}, delaySnapshots.getChangedLinks(start, version));
+    }
+
+    @Test
+    public void testChangedLinksAreSortedAndDistinct() {
+        long start = delaySnapshots.getSnapshot().getVersion();
+        setDelay(linkC, 10);
+        setDelay(linkB, 10);
+        delaySnapshots.run();
+        setDelay(linkB, 20);
+        setDelay(linkA, 10);
+        delaySnapshots.run();
+        assertArrayEquals(new int[]{linkA, linkB, linkC}, delaySnapshots.getChangedLinks(start, start + 2));
+        assertArrayEquals(new int[]{linkA, linkB}, delaySnapshots.getChangedLinks(start + 1, start + 2));
+        assertArrayEquals(new int[0], delaySnapshots.getChangedLinks(start + 2, start + 2));
+    }
+
+    @Test
+    public void testWithdrawnLinkIsChanged() {
+        setDelay(linkA, 10);
+        setDelay(linkB, 10);
+        delaySnapshots.run();
+        long version = delaySnapshots.getSnapshot().getVersion();
+        linkStore.clearDelay(linkA);
+        delaySnapshots.run();
+        assertEquals(version + 1, delaySnapshots.getSnapshot().getVersion());
+        assertEquals(1, delaySnapshots.getSnapshot().size());
+        assertArrayEquals(new int[]{linkA}, delaySnapshots.getChangedLinks(version, version + 1));
+    }
+
+    @Test
+    public void testChangeLogOverflow() {
+        long start = delaySnapshots.getSnapshot().getVersion();
+        for (int round = 1; round <= 3; round++) {
+            setDelay(linkA, round);
+            delaySnapshots.run();
+        }
+        // a change log of 2 versions no longer reaches back to the start
+        assertNull(delaySnapshots.getChangedLinks(start, start + 3));
+        assertArrayEquals(new int[]{linkA}, delaySnapshots.getChangedLinks(start + 1, start + 3));
+        // versions that were never published are a gap as well
+        assertNull(delaySnapshots.getChangedLinks(start + 2, start + 4));
+        assertNull(delaySnapshots.getChangedLinks(start + 3, start + 2));
+    }
+
+    private void setDelay(int link, long delay) {
+        linkStore.setDelay(link, delay, System.currentTimeMillis());
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright © 2017 bupt.dtj and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.bupt.delaydetect.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.packet.delaydetect.config.rev181107.DelaydetectConfig;
+
+public class EchoDelayEstimatorTest {
+
+    private static final String NODE = "openflow:1";
+
+    private EchoDelayEstimator echoDelayEstimator;
+
+    @Before
+    public void setUp() {
+        DelaydetectConfig delaydetectConfig = mock(DelaydetectConfig.class);
+        when(delaydetectConfig.getEchoWindow()).thenReturn((short) 4);
+        echoDelayEstimator = new EchoDelayEstimator(delaydetectConfig);
+    }
+
+    @Test
+    public void testWindowMinimum() {
+        assertEquals(0, echoDelayEstimator.getEstimate(NODE));
+        record(1200, 1000, 1100, 1300);
+        assertEquals(1000, echoDelayEstimator.getEstimate(NODE));
+        // 1000 leaves the window
+        record(1400, 1500);
+        assertEquals(1100, echoDelayEstimator.getEstimate(NODE));
+    }
+
+    @Test
+    public void testSingleOutlierIsRejected() {
+        record(1000, 1100, 1200, 1300, 10000, 1000, 10000);
+        assertEquals(1000, echoDelayEstimator.getEstimate(NODE));
+    }
+
+    @Test
+    public void testLevelShiftMovesEstimateAtOnce() {
+        record(1000, 1100, 1200, 1300);
+        // half a window of outliers in a row is a new level
+        record(9000, 8000);
+        assertEquals(8000, echoDelayEstimator.getEstimate(NODE));
+        record(8500);
+        assertEquals(8000, echoDelayEstimator.getEstimate(NODE));
+    }
+
+    @Test
+    public void testRemovedSwitchStartsOver() {
+        record(1000);
+        echoDelayEstimator.remove(NODE);
+        assertEquals(0, echoDelayEstimator.getEstimate(NODE));
+        record(5000);
+        assertEquals(5000, echoDelayEstimator.getEstimate(NODE));
+    }
+
+    private void record(long... echoDelays) {
+        for (long echoDelay : echoDelays) {
+            echoDelayEstimator.record(NODE, echoDelay);
+        }
+    }
+}
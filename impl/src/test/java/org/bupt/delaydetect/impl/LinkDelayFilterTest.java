@@ -0,0 +1,85 @@
+/*
+ * Copyright © 2017 bupt.dtj and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.bupt.delaydetect.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import org.junit.Test;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.packet.delaydetect.config.rev181107.DelaydetectConfig;
+
+public class LinkDelayFilterTest {
+
+    private static final int LINK = 5000;
+
+    @Test
+    public void testNonePassesEverySample() {
+        LinkDelayFilter linkDelayFilter = newFilter(DelaydetectConfig.DelayFilter.None, 5);
+        assertFiltered(linkDelayFilter, new long[]{10, 1000, 10}, new long[]{10, 1000, 10});
+        assertArrayEquals(new long[]{3, 0, 0}, linkDelayFilter.getCounters(LINK));
+    }
+
+    @Test
+    public void testMedian() {
+        LinkDelayFilter linkDelayFilter = newFilter(DelaydetectConfig.DelayFilter.Median, 3);
+        // the median of an even count is the mean of the middle samples
+        assertFiltered(linkDelayFilter, new long[]{10, 50, 20, 30, 5}, new long[]{10, 30, 20, 30, 20});
+    }
+
+    @Test
+    public void testMinWindow() {
+        LinkDelayFilter linkDelayFilter = newFilter(DelaydetectConfig.DelayFilter.MinWindow, 3);
+        assertFiltered(linkDelayFilter, new long[]{30, 10, 20, 40, 50}, new long[]{30, 10, 10, 10, 20});
+    }
+
+    @Test
+    public void testMadRejectsOutlier() {
+        LinkDelayFilter linkDelayFilter = newFilter(DelaydetectConfig.DelayFilter.Mad, 5);
+        // nothing is rejected until the window is full; then median 100, MAD 1
+        assertFiltered(linkDelayFilter, new long[]{100, 102, 98, 101, 99, 1000, 103},
+                new long[]{100, 102, 98, 101, 99, -1, 103});
+        assertArrayEquals(new long[]{6, 1, 0}, linkDelayFilter.getCounters(LINK));
+    }
+
+    @Test
+    public void testMadAcceptsLastingShift() {
+        LinkDelayFilter linkDelayFilter = newFilter(DelaydetectConfig.DelayFilter.Mad, 5);
+        // rejected samples still enter the window, until they are its median
+        assertFiltered(linkDelayFilter, new long[]{100, 102, 98, 101, 99, 1000, 1001, 1002, 1003},
+                new long[]{100, 102, 98, 101, 99, -1, -1, -1, 1003});
+    }
+
+    @Test
+    public void testCounters() {
+        LinkDelayFilter linkDelayFilter = newFilter(DelaydetectConfig.DelayFilter.Median, 3);
+        assertArrayEquals(new long[]{0, 0, 0}, linkDelayFilter.getCounters(LINK));
+        linkDelayFilter.filter(LINK, 10);
+        linkDelayFilter.rejectOutOfRange(LINK);
+        linkDelayFilter.rejectOutOfRange(LINK);
+        assertArrayEquals(new long[]{1, 0, 2}, linkDelayFilter.getCounters(LINK));
+        assertArrayEquals(new long[]{0, 0, 0}, linkDelayFilter.getCounters(LINK + 1));
+    }
+
+    private static void assertFiltered(LinkDelayFilter linkDelayFilter, long[] samples, long[] expected) {
+        long[] filtered = new long[samples.length];
+        for (int i = 0; i < samples.length; i++) {
+            filtered[i] = linkDelayFilter.filter(LINK, samples[i]);
+        }
+        assertArrayEquals(expected, filtered);
+    }
+
+    private static LinkDelayFilter newFilter(DelaydetectConfig.DelayFilter delayFilter, int filterWindow) {
+        DelaydetectConfig delaydetectConfig = mock(DelaydetectConfig.class);
+        when(delaydetectConfig.getDelayFilter()).thenReturn(delayFilter);
+        when(delaydetectConfig.getFilterWindow()).thenReturn((short) filterWindow);
+        when(delaydetectConfig.getMadThreshold()).thenReturn((short) 3);
+        return new LinkDelayFilter(delaydetectConfig);
+    }
+}
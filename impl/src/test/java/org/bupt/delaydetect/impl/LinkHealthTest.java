@@ -0,0 +1,132 @@
+/*
+ * Copyright © 2017 bupt.dtj and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.bupt.delaydetect.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Test;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.packet.delaydetect.config.rev181107.DelaydetectConfig;
+
+public class LinkHealthTest {
+
+    private static final int RECEIVED = 0;
+    private static final int LOST = 1;
+    private static final int REORDERED = 2;
+
+    private LinkStore linkStore;
+    private ProbeSequencer probeSequencer;
+    private LinkHealth linkHealth;
+    private int link;
+    private int srcSwitch;
+
+    @Before
+    public void setUp() {
+        DelaydetectConfig delaydetectConfig = mock(DelaydetectConfig.class);
+        // every probe sent before the sweep has timed out
+        when(delaydetectConfig.getProbeTimeout()).thenReturn(0);
+        when(delaydetectConfig.getLinkExpiry()).thenReturn(3600L);
+        linkStore = new LinkStore();
+        probeSequencer = new ProbeSequencer();
+        linkHealth = new LinkHealth(delaydetectConfig, linkStore, probeSequencer);
+        link = linkStore.intern("openflow:2:1");
+        srcSwitch = linkStore.setSource(link, 1L);
+    }
+
+    @Test
+    public void testUnseenLinkHasNoCounters() {
+        assertNull(linkHealth.getCounters(link));
+    }
+
+    @Test
+    public void testGapCountsLoss() {
+        receive(1, 2, 5, 6);
+        assertCounters(4, 2, 0);
+    }
+
+    @Test
+    public void testLateProbeReversesLoss() {
+        receive(1, 3, 2);
+        assertCounters(3, 0, 1);
+    }
+
+    @Test
+    public void testDuplicateDoesNotReverseLoss() {
+        receive(1, 2, 4, 2, 4);
+        assertCounters(3, 1, 0);
+        receive(3, 3);
+        assertCounters(4, 0, 1);
+    }
+
+    @Test
+    public void testProbeFarBehindRestartsSequence() {
+        // the source reconnected unnoticed and numbers its rounds from 1 again
+        receive(1, 100, 2, 3);
+        assertCounters(4, 98, 0);
+        receive(5);
+        assertCounters(5, 99, 0);
+    }
+
+    @Test
+    public void testRemovedSourceRestartsSequence() {
+        receive(1, 2, 3);
+        linkHealth.onSwitchRemoved("openflow:2");
+        receive(4);
+        assertCounters(4, 0, 0);
+        // the same switch reconnects and numbers its rounds from 1 again
+        linkHealth.onSwitchRemoved("openflow:1");
+        receive(1, 2);
+        assertCounters(6, 0, 0);
+        receive(4);
+        assertCounters(7, 1, 0);
+    }
+
+    @Test
+    public void testNewSourceRestartsSequence() {
+        receive(1, 2, 3);
+        srcSwitch = linkStore.setSource(link, 7L);
+        receive(1, 2);
+        assertCounters(5, 0, 0);
+    }
+
+    @Test
+    public void testTimeoutCountsMissingProbes() {
+        long sendTime = System.nanoTime() - TimeUnit.SECONDS.toNanos(1);
+        for (int round = 0; round < 3; round++) {
+            probeSequencer.next("openflow:1", sendTime);
+        }
+        receive(1);
+        linkHealth.run();
+        assertCounters(1, 2, 0);
+
+        // a probe counted lost by the sweep is taken back when it arrives late
+        receive(3, 3);
+        assertCounters(2, 1, 1);
+
+        // nothing new has timed out
+        linkHealth.run();
+        assertCounters(2, 1, 1);
+    }
+
+    private void receive(long... sequences) {
+        for (long sequence : sequences) {
+            linkHealth.onProbe(link, srcSwitch, sequence);
+        }
+    }
+
+    private void assertCounters(long received, long lost, long reordered) {
+        long[] counters = linkHealth.getCounters(link);
+        assertEquals("received", received, counters[RECEIVED]);
+        assertEquals("lost", lost, counters[LOST]);
+        assertEquals("reordered", reordered, counters[REORDERED]);
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright © 2017 bupt.dtj and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.bupt.delaydetect.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import org.junit.Test;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.packet.delaydetect.config.rev181107.DelaydetectConfig;
+
+public class LinkHistogramsTest {
+
+    // the delay from which every sample falls into the last bucket
+    private static final long OVERFLOW_DELAY = 1L << 31;
+
+    @Test
+    public void testBucketsAreContiguous() {
+        assertEquals(0, LinkHistograms.bucketOf(0L));
+        int bucket = 0;
+        while (LinkHistograms.highestValueOf(bucket) + 1 < OVERFLOW_DELAY) {
+            long highest = LinkHistograms.highestValueOf(bucket);
+            assertEquals(bucket, LinkHistograms.bucketOf(highest));
+            assertEquals(bucket + 1, LinkHistograms.bucketOf(highest + 1));
+            bucket++;
+        }
+    }
+
+    @Test
+    public void testBucketWidthBoundsError() {
+        int bucket = 1;
+        while (LinkHistograms.highestValueOf(bucket) + 1 < OVERFLOW_DELAY) {
+            long lowest = LinkHistograms.highestValueOf(bucket - 1) + 1;
+            long width = LinkHistograms.highestValueOf(bucket) - lowest + 1;
+            // below 8 units every bucket is one unit wide
+            assertTrue(width == 1024 || width * 8 <= lowest);
+            bucket++;
+        }
+    }
+
+    @Test
+    public void testOutOfRangeDelays() {
+        assertEquals(0, LinkHistograms.bucketOf(-1L));
+        int last = LinkHistograms.bucketOf(OVERFLOW_DELAY - 1);
+        assertEquals(last, LinkHistograms.bucketOf(OVERFLOW_DELAY));
+        assertEquals(last, LinkHistograms.bucketOf(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void testPercentiles() {
+        DelaydetectConfig delaydetectConfig = mock(DelaydetectConfig.class);
+        when(delaydetectConfig.getHistogramSlices()).thenReturn((short) 6);
+        when(delaydetectConfig.getHistogramWindow()).thenReturn(60L);
+        LinkHistograms linkHistograms = new LinkHistograms(delaydetectConfig);
+        assertNull(linkHistograms.getPercentiles(0, 50));
+        for (long delay = 1000; delay <= 100000; delay += 1000) {
+            linkHistograms.record(0, delay);
+        }
+        long[] percentiles = linkHistograms.getPercentiles(0, 50, 99);
+        assertEquals(100, percentiles[0]);
+        assertEquals(1000, percentiles[1]);
+        assertEquals(100000, percentiles[4]);
+        // a percentile is the top of its bucket, at most an eighth above the exact value
+        assertTrue(percentiles[2] >= 50000 && percentiles[2] <= 50000 + 50000 / 8);
+        assertTrue(percentiles[3] >= 99000 && percentiles[3] <= 100000);
+        assertNull(linkHistograms.getPercentiles(1, 50));
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright © 2017 bupt.dtj and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.bupt.delaydetect.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import org.junit.Before;
+import org.junit.Test;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.packet.delaydetect.config.rev181107.DelaydetectConfig;
+
+public class PathEngineTest {
+
+    private DelaydetectConfig delaydetectConfig;
+    private LinkStore linkStore;
+    private DelaySnapshots delaySnapshots;
+    private PathEngine pathEngine;
+
+    @Before
+    public void setUp() {
+        delaydetectConfig = mock(DelaydetectConfig.class);
+        when(delaydetectConfig.getChangeLogSize()).thenReturn(16);
+        when(delaydetectConfig.getPathThreshold()).thenReturn((short) 0);
+        when(delaydetectConfig.getPathCacheSize()).thenReturn(2);
+        linkStore = new LinkStore();
+        delaySnapshots = new DelaySnapshots(delaydetectConfig, linkStore);
+        pathEngine = new PathEngine(delaydetectConfig, linkStore, delaySnapshots);
+    }
+
+    @Test
+    public void testWorseEdgeDropsTreesUsingIt() {
+        int link12 = setLink(1, 2, 1, 10);
+        int link23 = setLink(2, 3, 1, 10);
+        int link13 = setLink(1, 3, 2, 50);
+        update();
+        assertPath(1, 3, 20, link12, link23);
+        setLink(1, 2, 1, 100);
+        update();
+        assertPath(1, 3, 50, link13);
+    }
+
+    @Test
+    public void testBetterEdgeDropsTreesItShortens() {
+        int link12 = setLink(1, 2, 1, 10);
+        int link23 = setLink(2, 3, 1, 10);
+        int link13 = setLink(1, 3, 2, 50);
+        update();
+        assertPath(1, 3, 20, link12, link23);
+        setLink(1, 3, 2, 5);
+        update();
+        assertPath(1, 3, 5, link13);
+    }
+
+    @Test
+    public void testNewAndWithdrawnEdges() {
+        int link12 = setLink(1, 2, 1, 10);
+        update();
+        assertNull(pathEngine.getShortestPath("openflow:1", "openflow:3"));
+        int link23 = setLink(2, 3, 1, 10);
+        update();
+        assertPath(1, 3, 20, link12, link23);
+        linkStore.clearDelay(link23);
+        update();
+        assertNull(pathEngine.getShortestPath("openflow:1", "openflow:3"));
+    }
+
+    @Test
+    public void testEvictedTreesAreRecomputed() {
+        int link12 = setLink(1, 2, 1, 10);
+        int link23 = setLink(2, 3, 1, 10);
+        int link31 = setLink(3, 1, 1, 10);
+        update();
+        // three sources do not fit into a cache of two trees
+        assertPath(1, 3, 20, link12, link23);
+        assertPath(2, 1, 20, link23, link31);
+        assertPath(3, 2, 20, link31, link12);
+        setLink(2, 3, 1, 30);
+        update();
+        assertPath(1, 3, 40, link12, link23);
+        assertPath(2, 1, 40, link23, link31);
+        assertPath(3, 2, 20, link31, link12);
+    }
+
+    @Test
+    public void testChangeWithinThresholdKeepsRouteButReportsLatestDelay() {
+        when(delaydetectConfig.getPathThreshold()).thenReturn((short) 50);
+        pathEngine = new PathEngine(delaydetectConfig, linkStore, delaySnapshots);
+        int link12 = setLink(1, 2, 1, 10);
+        int link23 = setLink(2, 3, 1, 10);
+        setLink(1, 3, 2, 25);
+        update();
+        assertPath(1, 3, 20, link12, link23);
+        // 40% worse stays within the threshold, so the route is kept
+        setLink(1, 2, 1, 14);
+        update();
+        assertPath(1, 3, 24, link12, link23);
+    }
+
+    @Test
+    public void testPathDelayTakesBestParallelLink() {
+        setLink(1, 2, 1, 30);
+        int fast = setLink(1, 2, 2, 10);
+        int link23 = setLink(2, 3, 1, 5);
+        update();
+        PathEngine.Path path = pathEngine.getPathDelay(Arrays.asList("openflow:1", "openflow:2", "openflow:3"));
+        assertEquals(15, path.getDelay());
+        assertArrayEquals(new int[]{fast, link23}, path.getLinks());
+        assertNull(pathEngine.getPathDelay(Arrays.asList("openflow:3", "openflow:1")));
+    }
+
+    private int setLink(int src, int dst, int port, long delay) {
+        int link = linkStore.intern("openflow:" + dst + ":" + port);
+        linkStore.setSource(link, src);
+        linkStore.setDelay(link, delay, System.currentTimeMillis());
+        return link;
+    }
+
+    private void update() {
+        delaySnapshots.run();
+        pathEngine.run();
+    }
+
+    private void assertPath(int src, int dst, long delay, int... links) {
+        PathEngine.Path path = pathEngine.getShortestPath("openflow:" + src, "openflow:" + dst);
+        assertEquals(delay, path.getDelay());
+        assertArrayEquals(links, path.getLinks());
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright © 2017 bupt.dtj and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.bupt.delaydetect.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.packet.delaydetect.config.rev181107.DelaydetectConfig;
+
+public class ProbeRateControllerTest {
+
+    private static final String NODE_1 = "openflow:1";
+    private static final String NODE_2 = "openflow:2";
+
+    @Test
+    public void testNoLimit() {
+        ProbeRateController probeRateController = newController(0L, 0L);
+        for (int i = 0; i < 100; i++) {
+            assertTrue(probeRateController.tryAcquireSwitch(NODE_1, 1000));
+            assertTrue(probeRateController.tryAcquireGlobal(1000));
+        }
+        assertEquals(0, probeRateController.getGlobalWaitNanos());
+        assertEquals(0, probeRateController.getDeferredProbes());
+    }
+
+    @Test
+    public void testGlobalBudgetGoesIntoDebt() {
+        // 10 probes per second leave a bucket of a single token
+        ProbeRateController probeRateController = newController(10L, 0L);
+        assertEquals(0, probeRateController.getGlobalWaitNanos());
+        assertTrue(probeRateController.tryAcquireGlobal(5));
+        assertFalse(probeRateController.tryAcquireGlobal(1));
+        assertEquals(1, probeRateController.getDeferredProbes());
+        // the debt of 4 probes is paid back before the next one, 0.5s in all
+        long waitNanos = probeRateController.getGlobalWaitNanos();
+        assertTrue(waitNanos > TimeUnit.MILLISECONDS.toNanos(400));
+        assertTrue(waitNanos <= TimeUnit.MILLISECONDS.toNanos(500));
+    }
+
+    @Test
+    public void testSwitchBudgetsAreSeparate() {
+        ProbeRateController probeRateController = newController(0L, 10L);
+        assertTrue(probeRateController.tryAcquireSwitch(NODE_1, 3));
+        assertFalse(probeRateController.tryAcquireSwitch(NODE_1, 3));
+        assertTrue(probeRateController.tryAcquireSwitch(NODE_2, 3));
+        assertEquals(3, probeRateController.getDeferredProbes());
+    }
+
+    @Test
+    public void testReleaseGivesBackUnsentProbes() {
+        ProbeRateController probeRateController = newController(0L, 10L);
+        assertTrue(probeRateController.tryAcquireSwitch(NODE_1, 3));
+        probeRateController.releaseSwitch(NODE_1, 3);
+        assertTrue(probeRateController.tryAcquireSwitch(NODE_1, 1));
+        // a release never lifts the bucket above its capacity
+        probeRateController.releaseSwitch(NODE_1, 100);
+        assertTrue(probeRateController.tryAcquireSwitch(NODE_1, 2));
+        assertFalse(probeRateController.tryAcquireSwitch(NODE_1, 1));
+    }
+
+    @Test
+    public void testSwitchWaitAndRemove() {
+        ProbeRateController probeRateController = newController(0L, 10L);
+        assertEquals(0, probeRateController.getSwitchWaitNanos(NODE_1));
+        assertTrue(probeRateController.tryAcquireSwitch(NODE_1, 3));
+        assertTrue(probeRateController.getSwitchWaitNanos(NODE_1) > TimeUnit.MILLISECONDS.toNanos(200));
+        assertEquals(0, probeRateController.getSwitchWaitNanos(NODE_2));
+        // a switch that comes back starts with a full bucket
+        probeRateController.remove(NODE_1);
+        assertEquals(0, probeRateController.getSwitchWaitNanos(NODE_1));
+        assertTrue(probeRateController.tryAcquireSwitch(NODE_1, 1));
+    }
+
+    private static ProbeRateController newController(long globalProbeRate, long switchProbeRate) {
+        DelaydetectConfig delaydetectConfig = mock(DelaydetectConfig.class);
+        when(delaydetectConfig.getGlobalProbeRate()).thenReturn(globalProbeRate);
+        when(delaydetectConfig.getSwitchProbeRate()).thenReturn(switchProbeRate);
+        return new ProbeRateController(delaydetectConfig);
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright © 2017 bupt.dtj and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.bupt.delaydetect.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+public class ProbeRecordRingTest {
+
+    @Test
+    public void testFullRingDropsRecords() {
+        ProbeRecordRing ring = new ProbeRecordRing(4);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(ring.offer(i, i, i, i, i, i));
+        }
+        assertFalse(ring.offer(4, 4, 4, 4, 4, 4));
+        assertEquals(1, ring.getDropped());
+        assertEquals(4, ring.getBacklog());
+
+        Recorder recorder = new Recorder();
+        assertEquals(4, ring.drain(recorder, 16));
+        assertEquals(0, ring.getBacklog());
+        for (int i = 0; i < 4; i++) {
+            assertEquals(i, recorder.records.get(i)[0]);
+        }
+        // the slots of drained records are free again
+        assertTrue(ring.offer(5, 5, 5, 5, 5, 5));
+        assertEquals(1, ring.getDropped());
+    }
+
+    @Test
+    public void testWraparoundKeepsOrderAndFields() {
+        ProbeRecordRing ring = new ProbeRecordRing(8);
+        Recorder recorder = new Recorder();
+        long next = 0;
+        for (int round = 0; round < 100; round++) {
+            // offer an uneven number per round so records straddle the end of the array
+            for (int i = 0; i < 5; i++) {
+                long value = next + i;
+                assertTrue(ring.offer((int) value, value + 1, value + 2, value + 3, value + 4, value + 5));
+            }
+            next += 5;
+            ring.drain(recorder, 3);
+            ring.drain(recorder, 3);
+        }
+        ring.drain(recorder, Integer.MAX_VALUE);
+        assertEquals(0, ring.getDropped());
+        assertEquals(next, recorder.records.size());
+        for (int i = 0; i < next; i++) {
+            long[] record = recorder.records.get(i);
+            assertEquals(i, record[0]);
+            for (int field = 1; field < record.length; field++) {
+                assertEquals(i + field, record[field]);
+            }
+        }
+    }
+
+    @Test
+    public void testDrainHonoursMaxRecords() {
+        ProbeRecordRing ring = new ProbeRecordRing(16);
+        for (int i = 0; i < 10; i++) {
+            ring.offer(i, 0, 0, 0, 0, 0);
+        }
+        Recorder recorder = new Recorder();
+        assertEquals(4, ring.drain(recorder, 4));
+        assertEquals(6, ring.getBacklog());
+        assertEquals(6, ring.drain(recorder, 100));
+        assertEquals(0, ring.drain(recorder, 100));
+    }
+
+    private static class Recorder implements ProbeRecordRing.RecordHandler {
+        private final List<long[]> records = new ArrayList<>();
+
+        @Override
+        public void onRecord(int link, long arrivalTime, long sendTime, long srcDpid, long egressPort, long sequence) {
+            records.add(new long[]{link, arrivalTime, sendTime, srcDpid, egressPort, sequence});
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright © 2017 bupt.dtj and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.bupt.delaydetect.impl.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import org.junit.Test;
+
+public class ProbeCodecTest {
+
+    @Test
+    public void testFrameRoundTrip() {
+        ByteBuffer frame = ByteBuffer.allocate(ProbeCodec.FRAME_LENGTH);
+        ProbeCodec.writeFrame(frame, 0x8000000000000001L);
+        ProbeCodec.writeSendTime(frame, 123456789012345L);
+        ProbeCodec.writeEgressPort(frame, 0xFFFFFFF0L);
+        ProbeCodec.writeSequence(frame, 0xFFFFFFFEL);
+        assertTrue(ProbeCodec.isProbe(frame));
+        assertEquals(0x8000000000000001L, ProbeCodec.readSrcDpid(frame));
+        assertEquals(123456789012345L, ProbeCodec.readSendTime(frame));
+        assertEquals(0xFFFFFFF0L, ProbeCodec.readEgressPort(frame));
+        assertEquals(0xFFFFFFFEL, ProbeCodec.readSequence(frame));
+        assertEquals(0xFFFF, headerSum(frame));
+    }
+
+    @Test
+    public void testIncrementalChecksumMatchesFullSum() {
+        ByteBuffer frame = ByteBuffer.allocate(ProbeCodec.FRAME_LENGTH);
+        ProbeCodec.writeFrame(frame, 42L);
+        assertEquals(0xFFFF, headerSum(frame));
+        Random random = new Random(1);
+        for (int i = 0; i < 10000; i++) {
+            switch (random.nextInt(3)) {
+                case 0:
+                    ProbeCodec.writeSendTime(frame, random.nextLong());
+                    break;
+                case 1:
+                    ProbeCodec.writeEgressPort(frame, random.nextInt() & 0xFFFFFFFFL);
+                    break;
+                default:
+                    ProbeCodec.writeSequence(frame, random.nextInt() & 0xFFFFFFFFL);
+                    break;
+            }
+            assertEquals(0xFFFF, headerSum(frame));
+        }
+        // all-zero and all-one fields are the edge cases of one's complement
+        ProbeCodec.writeSendTime(frame, 0L);
+        ProbeCodec.writeEgressPort(frame, 0L);
+        ProbeCodec.writeSequence(frame, 0L);
+        assertEquals(0xFFFF, headerSum(frame));
+        ProbeCodec.writeSendTime(frame, -1L);
+        ProbeCodec.writeEgressPort(frame, 0xFFFFFFFFL);
+        ProbeCodec.writeSequence(frame, 0xFFFFFFFFL);
+        assertEquals(0xFFFF, headerSum(frame));
+    }
+
+    @Test
+    public void testOtherFrameIsNoProbe() {
+        ByteBuffer frame = ByteBuffer.allocate(ProbeCodec.FRAME_LENGTH);
+        ProbeCodec.writeFrame(frame, 1L);
+        frame.putShort(12, (short) 0x88cc);
+        assertFalse(ProbeCodec.isProbe(frame));
+        assertFalse(ProbeCodec.isProbe(ByteBuffer.allocate(ProbeCodec.FRAME_LENGTH - 1)));
+    }
+
+    /**
+     * @return the one's complement sum of the IPv4 header including its
+     *         checksum, 0xFFFF for a valid header
+     */
+    private static int headerSum(ByteBuffer frame) {
+        int sum = 0;
+        for (int i = ProbeCodec.IPV4_OFFSET; i < ProbeCodec.FRAME_LENGTH; i += 2) {
+            sum += frame.getShort(i) & 0xFFFF;
+        }
+        while (sum >>> 16 != 0) {
+            sum = (sum & 0xFFFF) + (sum >>> 16);
+        }
+        return sum;
+    }
+}